@@ -2,9 +2,17 @@ package de.medizininformatikinitiative.flare;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import de.medizininformatikinitiative.flare.model.mapping.MappingContext;
+import de.medizininformatikinitiative.flare.service.CoalescingFhirQueryService;
+import de.medizininformatikinitiative.flare.service.ConnectionPoolStats;
+import de.medizininformatikinitiative.flare.service.DataStore;
 import de.medizininformatikinitiative.flare.service.DiskCachingFhirQueryService;
 import de.medizininformatikinitiative.flare.service.FhirQueryService;
+import de.medizininformatikinitiative.flare.service.GroupCache;
 import de.medizininformatikinitiative.flare.service.MemCachingFhirQueryService;
+import de.medizininformatikinitiative.flare.service.OffHeapCachingFhirQueryService;
+import de.medizininformatikinitiative.flare.service.PatientIdReclaimer;
+import de.medizininformatikinitiative.flare.service.SchedulingFhirQueryService;
+import io.netty.channel.ChannelOption;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -24,11 +32,14 @@ import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
 import org.springframework.web.reactive.function.client.ExchangeFilterFunctions;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.scheduler.Schedulers;
+import reactor.netty.http.HttpProtocol;
 import reactor.netty.http.client.HttpClient;
 import reactor.netty.resources.ConnectionProvider;
 
 import java.time.Clock;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalTime;
 
 import static org.springframework.security.oauth2.core.AuthorizationGrantType.CLIENT_CREDENTIALS;
 
@@ -53,14 +64,31 @@ public class FlareApplication {
                                      @Value("${flare.fhir.password}") String password,
                                      @Value("${flare.fhir.maxConnections}") int maxConnections,
                                      @Value("${flare.fhir.maxQueueSize}") int maxQueueSize,
+                                     @Value("${flare.fhir.http2}") boolean http2,
+                                     @Value("${flare.fhir.keepAlive}") boolean keepAlive,
+                                     @Value("${flare.fhir.maxIdleTime}") Duration maxIdleTime,
+                                     @Value("${flare.fhir.compression}") boolean compression,
+                                     ConnectionPoolStats connectionPoolStats,
                                      ObjectMapper mapper,
                                      @Qualifier("oauth") ExchangeFilterFunction oauthExchangeFilterFunction) {
         logger.info("Create a HTTP connection pool to {} with a maximum of {} connections.", baseUrl, maxConnections);
-        ConnectionProvider provider = ConnectionProvider.builder("data-store")
+        ConnectionProvider.Builder providerBuilder = ConnectionProvider.builder("data-store")
                 .maxConnections(maxConnections)
                 .pendingAcquireMaxCount(maxQueueSize)
-                .build();
-        HttpClient httpClient = HttpClient.create(provider);
+                .metrics(true, () -> connectionPoolStats);
+        if (!maxIdleTime.isZero()) {
+            providerBuilder = providerBuilder.maxIdleTime(maxIdleTime).evictInBackground(maxIdleTime);
+        }
+        HttpClient httpClient = HttpClient.create(providerBuilder.build())
+                .keepAlive(keepAlive)
+                .option(ChannelOption.SO_KEEPALIVE, keepAlive)
+                .compress(compression);
+        if (http2) {
+            logger.info("Use HTTP/2 with multiplexed streams towards {}.", baseUrl);
+            httpClient = baseUrl.startsWith("https:")
+                    ? httpClient.protocol(HttpProtocol.H2, HttpProtocol.HTTP11).secure()
+                    : httpClient.protocol(HttpProtocol.H2C);
+        }
         WebClient.Builder builder = WebClient.builder()
                 .baseUrl(baseUrl)
                 .clientConnector(new ReactorClientHttpConnector(httpClient))
@@ -79,6 +107,30 @@ public class FlareApplication {
                 .build();
     }
 
+    @Bean
+    public DataStore dataStore(@Qualifier("dataStoreClient") WebClient client,
+                               @Qualifier("systemDefaultZone") Clock clock,
+                               @Value("${flare.fhir.pageCount}") int pageCount,
+                               @Value("${flare.fhir.pageCountAdaptive}") boolean pageCountAdaptive,
+                               @Value("${flare.fhir.pageCountMin}") int pageCountMin,
+                               @Value("${flare.fhir.pageCountMax}") int pageCountMax,
+                               @Value("${flare.fhir.pageLatencyTarget}") Duration pageLatencyTarget,
+                               @Value("${flare.fhir.countProbe}") boolean countProbe,
+                               @Value("${flare.fhir.partitions.count}") int partitionCount,
+                               @Value("${flare.fhir.partitions.start}") Instant partitionStart,
+                               @Value("${flare.fhir.partitions.parallelism}") int partitionParallelism,
+                               @Value("${flare.fhir.reverseChaining}") boolean reverseChaining) {
+        return new DataStore(client, clock, new DataStore.Config(pageCount,
+                pageCountAdaptive ? Math.min(pageCountMin, pageCount) : pageCount,
+                pageCountAdaptive ? Math.max(pageCountMax, pageCount) : pageCount, pageLatencyTarget, countProbe,
+                partitionCount, partitionStart, partitionParallelism, reverseChaining));
+    }
+
+    @Bean
+    public ConnectionPoolStats connectionPoolStats() {
+        return new ConnectionPoolStats();
+    }
+
     @Bean
     public MappingContext mappingContext() throws Exception {
         return Util.flareMappingContext(Clock.systemDefaultZone());
@@ -86,17 +138,48 @@ public class FlareApplication {
 
     @Bean
     public MemCachingFhirQueryService memCachingFhirQueryService(
-            @Qualifier("diskCachingFhirQueryService") FhirQueryService fhirQueryService,
+            @Qualifier("offHeapCachingFhirQueryService") FhirQueryService fhirQueryService,
+            @Qualifier("coalescingFhirQueryService") FhirQueryService deltaFhirQueryService,
+            @Qualifier("systemDefaultZone") Clock clock,
             @Value("${flare.cache.mem.sizeMB}") int sizeInMebibytes,
             @Value("${flare.cache.mem.expire}") Duration expire,
-            @Value("${flare.cache.mem.refresh}") Duration refresh) {
-        return new MemCachingFhirQueryService(fhirQueryService, new MemCachingFhirQueryService.Config(sizeInMebibytes,
-                expire, refresh));
+            @Value("${flare.cache.mem.refresh}") Duration refresh,
+            @Value("${flare.cache.mem.fullRefresh}") Duration fullRefresh,
+            @Value("${flare.cache.mem.refreshStart}") LocalTime refreshStart,
+            @Value("${flare.cache.mem.refreshWindow}") Duration refreshWindow,
+            @Value("${flare.cache.mem.refreshRate}") int refreshRate) {
+        return new MemCachingFhirQueryService(fhirQueryService, deltaFhirQueryService,
+                new MemCachingFhirQueryService.Config(sizeInMebibytes, expire, refresh, fullRefresh, refreshStart,
+                        refreshWindow, refreshRate), clock);
+    }
+
+    @Bean
+    public OffHeapCachingFhirQueryService offHeapCachingFhirQueryService(
+            @Qualifier("diskCachingFhirQueryService") FhirQueryService fhirQueryService,
+            @Qualifier("systemDefaultZone") Clock clock,
+            @Value("${flare.cache.offHeap.sizeMB}") int sizeInMebibytes,
+            @Value("${flare.cache.offHeap.expire}") Duration expire) {
+        return new OffHeapCachingFhirQueryService(fhirQueryService,
+                new OffHeapCachingFhirQueryService.Config(sizeInMebibytes, expire), Schedulers.parallel(), clock);
+    }
+
+    @Bean
+    public GroupCache groupCache(
+            @Qualifier("systemDefaultZone") Clock clock,
+            @Value("${flare.cache.group.sizeMB}") int sizeInMebibytes,
+            @Value("${flare.cache.mem.refresh}") Duration maxAge) {
+        return new GroupCache(new GroupCache.Config(sizeInMebibytes, maxAge), clock);
+    }
+
+    @Bean
+    public PatientIdReclaimer patientIdReclaimer(OffHeapCachingFhirQueryService offHeapCache,
+                                                 @Value("${flare.cache.reclaimInterval}") Duration interval) {
+        return new PatientIdReclaimer(offHeapCache, new PatientIdReclaimer.Config(interval));
     }
 
     @Bean
     public DiskCachingFhirQueryService diskCachingFhirQueryService(
-            @Qualifier("dataStore") FhirQueryService fhirQueryService,
+            @Qualifier("coalescingFhirQueryService") FhirQueryService fhirQueryService,
             @Qualifier("systemDefaultZone") Clock clock,
             @Value("${flare.cache.disk.path}") String path,
             @Value("${flare.cache.disk.expire}") Duration expire,
@@ -105,6 +188,22 @@ public class FlareApplication {
                 Schedulers.newParallel("disk-cache", numThreads), clock);
     }
 
+    @Bean
+    public CoalescingFhirQueryService coalescingFhirQueryService(
+            @Qualifier("schedulingFhirQueryService") FhirQueryService fhirQueryService) {
+        return new CoalescingFhirQueryService(fhirQueryService);
+    }
+
+    @Bean
+    public SchedulingFhirQueryService schedulingFhirQueryService(
+            @Qualifier("dataStore") FhirQueryService fhirQueryService,
+            @Value("${flare.fhir.maxConcurrentQueries}") int maxConcurrentQueries,
+            @Value("${flare.fhir.maxWaitingQueries}") int maxWaitingQueries,
+            @Value("${flare.fhir.refreshWeight}") int refreshWeight) {
+        return new SchedulingFhirQueryService(fhirQueryService, new SchedulingFhirQueryService.Config(
+                maxConcurrentQueries, maxWaitingQueries, refreshWeight));
+    }
+
     @Bean
     public Clock systemDefaultZone() {
         return Clock.systemDefaultZone();
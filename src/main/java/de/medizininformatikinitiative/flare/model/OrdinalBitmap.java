@@ -0,0 +1,779 @@
+package de.medizininformatikinitiative.flare.model;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * An immutable, compressed bitmap of patient ordinals in the style of Roaring bitmaps.
+ * <p>
+ * The 32-bit ordinals are split into their upper 16 bits, the key, and their lower 16 bits which are stored in one
+ * container per key. Each container uses one of three representations depending on its density:
+ * <ul>
+ *     <li>a sorted array of values for up to 4096 values,</li>
+ *     <li>a bitmap of 65536 bits for more values or</li>
+ *     <li>a list of runs of consecutive values if that is the smallest representation.</li>
+ * </ul>
+ * After every operation, the smallest representation is chosen for each resulting container.
+ */
+final class OrdinalBitmap {
+
+    private static final int MAX_ARRAY_SIZE = 4096;
+    private static final int BITMAP_WORDS = 1024;
+    private static final int BITMAP_MEM_SIZE = 16 + 16 + BITMAP_WORDS * 8;
+
+    private final char[] keys;
+    private final Container[] containers;
+    private final int cardinality;
+
+    private OrdinalBitmap(char[] keys, Container[] containers, int size) {
+        this.keys = size == keys.length ? keys : Arrays.copyOf(keys, size);
+        this.containers = size == containers.length ? containers : Arrays.copyOf(containers, size);
+        int cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += containers[i].cardinality();
+        }
+        this.cardinality = cardinality;
+    }
+
+    /**
+     * Creates a bitmap from the first {@code length} entries of {@code sortedOrdinals}.
+     *
+     * @param sortedOrdinals distinct ordinals in ascending order
+     * @param length         the number of ordinals to use
+     * @return a bitmap containing the ordinals
+     */
+    static OrdinalBitmap of(int[] sortedOrdinals, int length) {
+        var keys = new char[length == 0 ? 0 : (sortedOrdinals[length - 1] >>> 16) - (sortedOrdinals[0] >>> 16) + 1];
+        var containers = new Container[keys.length];
+        int size = 0;
+        int i = 0;
+        while (i < length) {
+            char key = (char) (sortedOrdinals[i] >>> 16);
+            int start = i;
+            while (i < length && sortedOrdinals[i] >>> 16 == key) {
+                i++;
+            }
+            var values = new char[i - start];
+            for (int j = start; j < i; j++) {
+                values[j - start] = (char) sortedOrdinals[j];
+            }
+            keys[size] = key;
+            containers[size++] = values.length <= MAX_ARRAY_SIZE
+                    ? optimize(new ArrayContainer(values))
+                    : optimize(BitmapContainer.of(values));
+        }
+        return new OrdinalBitmap(keys, containers, size);
+    }
+
+    int cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * Returns the smallest ordinal of this bitmap.
+     * <p>
+     * Must not be called on empty bitmaps.
+     */
+    int first() {
+        return keys[0] << 16 | containers[0].first();
+    }
+
+    /**
+     * Returns the largest ordinal of this bitmap.
+     * <p>
+     * Must not be called on empty bitmaps.
+     */
+    int last() {
+        int last = keys.length - 1;
+        return keys[last] << 16 | containers[last].last();
+    }
+
+    boolean contains(int ordinal) {
+        int i = Arrays.binarySearch(keys, (char) (ordinal >>> 16));
+        return i >= 0 && containers[i].contains((char) ordinal);
+    }
+
+    /**
+     * Returns the size of this bitmap in memory.
+     */
+    int memSize() {
+        int size = 24 + 16 + keys.length * 2 + 16 + containers.length * 4;
+        for (Container container : containers) {
+            size += container.memSize();
+        }
+        return size;
+    }
+
+    int[] toArray() {
+        var ordinals = new int[cardinality];
+        int offset = 0;
+        for (int i = 0; i < keys.length; i++) {
+            offset = containers[i].copyTo(ordinals, offset, keys[i] << 16);
+        }
+        return ordinals;
+    }
+
+    PrimitiveIterator.OfInt iterator() {
+        return new OrdinalIterator();
+    }
+
+    OrdinalBitmap and(OrdinalBitmap other) {
+        var keys = new char[Math.min(this.keys.length, other.keys.length)];
+        var containers = new Container[keys.length];
+        int i = 0, j = 0, r = 0;
+        while (i < this.keys.length && j < other.keys.length) {
+            if (this.keys[i] < other.keys[j]) {
+                i++;
+            } else if (this.keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                var container = and(this.containers[i], other.containers[j]);
+                if (container.cardinality() > 0) {
+                    keys[r] = this.keys[i];
+                    containers[r++] = container;
+                }
+                i++;
+                j++;
+            }
+        }
+        return new OrdinalBitmap(keys, containers, r);
+    }
+
+    OrdinalBitmap or(OrdinalBitmap other) {
+        var keys = new char[this.keys.length + other.keys.length];
+        var containers = new Container[keys.length];
+        int i = 0, j = 0, r = 0;
+        while (i < this.keys.length && j < other.keys.length) {
+            if (this.keys[i] < other.keys[j]) {
+                keys[r] = this.keys[i];
+                containers[r++] = this.containers[i++];
+            } else if (this.keys[i] > other.keys[j]) {
+                keys[r] = other.keys[j];
+                containers[r++] = other.containers[j++];
+            } else {
+                keys[r] = this.keys[i];
+                containers[r++] = or(this.containers[i++], other.containers[j++]);
+            }
+        }
+        while (i < this.keys.length) {
+            keys[r] = this.keys[i];
+            containers[r++] = this.containers[i++];
+        }
+        while (j < other.keys.length) {
+            keys[r] = other.keys[j];
+            containers[r++] = other.containers[j++];
+        }
+        return new OrdinalBitmap(keys, containers, r);
+    }
+
+    OrdinalBitmap andNot(OrdinalBitmap other) {
+        var keys = new char[this.keys.length];
+        var containers = new Container[keys.length];
+        int i = 0, j = 0, r = 0;
+        while (i < this.keys.length && j < other.keys.length) {
+            if (this.keys[i] < other.keys[j]) {
+                keys[r] = this.keys[i];
+                containers[r++] = this.containers[i++];
+            } else if (this.keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                var container = andNot(this.containers[i], other.containers[j]);
+                if (container.cardinality() > 0) {
+                    keys[r] = this.keys[i];
+                    containers[r++] = container;
+                }
+                i++;
+                j++;
+            }
+        }
+        while (i < this.keys.length) {
+            keys[r] = this.keys[i];
+            containers[r++] = this.containers[i++];
+        }
+        return new OrdinalBitmap(keys, containers, r);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+
+        if (!(o instanceof OrdinalBitmap b))
+            return false;
+
+        if (cardinality != b.cardinality || !Arrays.equals(keys, b.keys))
+            return false;
+
+        for (int i = 0; i < containers.length; i++) {
+            if (!equals(containers[i], b.containers[i]))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compares the contents of containers of the same kind directly.
+     * <p>
+     * Because containers are always in their smallest representation, which only depends on their values, containers
+     * with the same values are of the same kind. Values of containers of different kinds are compared as a fallback.
+     */
+    private static boolean equals(Container a, Container b) {
+        if (a.cardinality() != b.cardinality()) {
+            return false;
+        } else if (a instanceof ArrayContainer aa && b instanceof ArrayContainer ab) {
+            return Arrays.equals(aa.values, ab.values);
+        } else if (a instanceof BitmapContainer ba && b instanceof BitmapContainer bb) {
+            return Arrays.equals(ba.words, bb.words);
+        } else if (a instanceof RunContainer ra && b instanceof RunContainer rb) {
+            return Arrays.equals(ra.runs, rb.runs);
+        }
+        return Arrays.equals(a.values(), b.values());
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        var iterator = iterator();
+        while (iterator.hasNext()) {
+            hash = 31 * hash + iterator.nextInt();
+        }
+        return hash;
+    }
+
+    private static Container and(Container a, Container b) {
+        a = a.unrun();
+        b = b.unrun();
+        if (a instanceof ArrayContainer aa) {
+            return optimize(b instanceof ArrayContainer ab ? aa.and(ab) : aa.filter(b, true));
+        } else if (b instanceof ArrayContainer ab) {
+            return optimize(ab.filter(a, true));
+        }
+        return optimize(((BitmapContainer) a).and((BitmapContainer) b));
+    }
+
+    private static Container or(Container a, Container b) {
+        a = a.unrun();
+        b = b.unrun();
+        if (a instanceof ArrayContainer aa && b instanceof ArrayContainer ab) {
+            return optimize(aa.or(ab));
+        }
+        return optimize(a.toBitmap().or(b));
+    }
+
+    private static Container andNot(Container a, Container b) {
+        a = a.unrun();
+        b = b.unrun();
+        if (a instanceof ArrayContainer aa) {
+            return optimize(aa.filter(b, false));
+        }
+        return optimize(((BitmapContainer) a).andNot(b));
+    }
+
+    /**
+     * Returns the smallest representation of {@code container}.
+     */
+    private static Container optimize(Container container) {
+        int cardinality = container.cardinality();
+        int runSize = 16 + 16 + container.numRuns() * 4;
+        int arraySize = cardinality <= MAX_ARRAY_SIZE ? 16 + 16 + cardinality * 2 : Integer.MAX_VALUE;
+        if (runSize < arraySize && runSize < BITMAP_MEM_SIZE) {
+            return container instanceof RunContainer ? container : RunContainer.of(container);
+        } else if (arraySize <= BITMAP_MEM_SIZE) {
+            return container instanceof ArrayContainer ? container : new ArrayContainer(container.values());
+        }
+        return container.toBitmap();
+    }
+
+    private abstract static class Container {
+
+        abstract int cardinality();
+
+        abstract boolean contains(char value);
+
+        abstract char first();
+
+        abstract char last();
+
+        abstract int numRuns();
+
+        abstract int memSize();
+
+        /**
+         * Copies all values combined with {@code high} into {@code dst} starting at {@code offset}.
+         *
+         * @return the offset after the last copied value
+         */
+        abstract int copyTo(int[] dst, int offset, int high);
+
+        abstract PrimitiveIterator.OfInt iterator();
+
+        /**
+         * Returns all values in ascending order.
+         */
+        char[] values() {
+            var values = new char[cardinality()];
+            var iterator = iterator();
+            for (int i = 0; i < values.length; i++) {
+                values[i] = (char) iterator.nextInt();
+            }
+            return values;
+        }
+
+        abstract BitmapContainer toBitmap();
+
+        /**
+         * Returns either an array or a bitmap container with the same values.
+         */
+        Container unrun() {
+            return this;
+        }
+    }
+
+    private static final class ArrayContainer extends Container {
+
+        private final char[] values;
+
+        private ArrayContainer(char[] values) {
+            this.values = values;
+        }
+
+        @Override
+        int cardinality() {
+            return values.length;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, value) >= 0;
+        }
+
+        @Override
+        char first() {
+            return values[0];
+        }
+
+        @Override
+        char last() {
+            return values[values.length - 1];
+        }
+
+        @Override
+        int numRuns() {
+            int runs = values.length == 0 ? 0 : 1;
+            for (int i = 1; i < values.length; i++) {
+                if (values[i] != values[i - 1] + 1) {
+                    runs++;
+                }
+            }
+            return runs;
+        }
+
+        @Override
+        int memSize() {
+            return 16 + 16 + values.length * 2;
+        }
+
+        @Override
+        int copyTo(int[] dst, int offset, int high) {
+            for (char value : values) {
+                dst[offset++] = high | value;
+            }
+            return offset;
+        }
+
+        @Override
+        PrimitiveIterator.OfInt iterator() {
+            return new PrimitiveIterator.OfInt() {
+                private int cursor;
+
+                @Override
+                public boolean hasNext() {
+                    return cursor < values.length;
+                }
+
+                @Override
+                public int nextInt() {
+                    if (cursor == values.length) {
+                        throw new NoSuchElementException();
+                    }
+                    return values[cursor++];
+                }
+            };
+        }
+
+        @Override
+        char[] values() {
+            return values;
+        }
+
+        @Override
+        BitmapContainer toBitmap() {
+            return BitmapContainer.of(values);
+        }
+
+        private ArrayContainer and(ArrayContainer other) {
+            var res = new char[Math.min(values.length, other.values.length)];
+            int i = 0, j = 0, r = 0;
+            while (i < values.length && j < other.values.length) {
+                if (values[i] < other.values[j]) {
+                    i++;
+                } else if (values[i] > other.values[j]) {
+                    j++;
+                } else {
+                    res[r++] = values[i++];
+                    j++;
+                }
+            }
+            return new ArrayContainer(Arrays.copyOf(res, r));
+        }
+
+        private Container or(ArrayContainer other) {
+            var res = new char[values.length + other.values.length];
+            int i = 0, j = 0, r = 0;
+            while (i < values.length && j < other.values.length) {
+                if (values[i] < other.values[j]) {
+                    res[r++] = values[i++];
+                } else if (values[i] > other.values[j]) {
+                    res[r++] = other.values[j++];
+                } else {
+                    res[r++] = values[i++];
+                    j++;
+                }
+            }
+            while (i < values.length) {
+                res[r++] = values[i++];
+            }
+            while (j < other.values.length) {
+                res[r++] = other.values[j++];
+            }
+            return r <= MAX_ARRAY_SIZE ? new ArrayContainer(Arrays.copyOf(res, r)) : BitmapContainer.of(res, r);
+        }
+
+        /**
+         * Returns the values for which {@code other.contains} equals {@code keep}.
+         */
+        private ArrayContainer filter(Container other, boolean keep) {
+            var res = new char[values.length];
+            int r = 0;
+            for (char value : values) {
+                if (other.contains(value) == keep) {
+                    res[r++] = value;
+                }
+            }
+            return new ArrayContainer(r == values.length ? values : Arrays.copyOf(res, r));
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+
+        private final long[] words;
+        private final int cardinality;
+
+        private BitmapContainer(long[] words) {
+            this.words = words;
+            int cardinality = 0;
+            for (long word : words) {
+                cardinality += Long.bitCount(word);
+            }
+            this.cardinality = cardinality;
+        }
+
+        private static BitmapContainer of(char[] values) {
+            return of(values, values.length);
+        }
+
+        private static BitmapContainer of(char[] values, int length) {
+            var words = new long[BITMAP_WORDS];
+            for (int i = 0; i < length; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+            return new BitmapContainer(words);
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & 1L << value) != 0;
+        }
+
+        @Override
+        char first() {
+            int i = 0;
+            while (words[i] == 0) {
+                i++;
+            }
+            return (char) (i * 64 + Long.numberOfTrailingZeros(words[i]));
+        }
+
+        @Override
+        char last() {
+            int i = BITMAP_WORDS - 1;
+            while (words[i] == 0) {
+                i--;
+            }
+            return (char) (i * 64 + 63 - Long.numberOfLeadingZeros(words[i]));
+        }
+
+        @Override
+        int numRuns() {
+            int runs = 0;
+            for (int i = 0; i < BITMAP_WORDS - 1; i++) {
+                long word = words[i];
+                runs += Long.bitCount(~word & word << 1) + (int) ((word >>> 63) & ~words[i + 1]);
+            }
+            long word = words[BITMAP_WORDS - 1];
+            return runs + Long.bitCount(~word & word << 1) + (int) (word >>> 63);
+        }
+
+        @Override
+        int memSize() {
+            return BITMAP_MEM_SIZE;
+        }
+
+        @Override
+        int copyTo(int[] dst, int offset, int high) {
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    dst[offset++] = high | i * 64 + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+            return offset;
+        }
+
+        @Override
+        PrimitiveIterator.OfInt iterator() {
+            return new PrimitiveIterator.OfInt() {
+                private int index;
+                private long word = words[0];
+
+                @Override
+                public boolean hasNext() {
+                    while (word == 0 && index < BITMAP_WORDS - 1) {
+                        word = words[++index];
+                    }
+                    return word != 0;
+                }
+
+                @Override
+                public int nextInt() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    int value = index * 64 + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    return value;
+                }
+            };
+        }
+
+        @Override
+        BitmapContainer toBitmap() {
+            return this;
+        }
+
+        private BitmapContainer and(BitmapContainer other) {
+            var res = new long[BITMAP_WORDS];
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                res[i] = words[i] & other.words[i];
+            }
+            return new BitmapContainer(res);
+        }
+
+        private BitmapContainer or(Container other) {
+            var res = words.clone();
+            if (other instanceof BitmapContainer b) {
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    res[i] |= b.words[i];
+                }
+            } else {
+                for (char value : other.values()) {
+                    res[value >>> 6] |= 1L << value;
+                }
+            }
+            return new BitmapContainer(res);
+        }
+
+        private BitmapContainer andNot(Container other) {
+            var res = words.clone();
+            if (other instanceof BitmapContainer b) {
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    res[i] &= ~b.words[i];
+                }
+            } else {
+                for (char value : other.values()) {
+                    res[value >>> 6] &= ~(1L << value);
+                }
+            }
+            return new BitmapContainer(res);
+        }
+    }
+
+    /**
+     * A container of runs of consecutive values. Each run is stored as its start value followed by its length minus
+     * one.
+     */
+    private static final class RunContainer extends Container {
+
+        private final char[] runs;
+        private final int cardinality;
+
+        private RunContainer(char[] runs) {
+            this.runs = runs;
+            int cardinality = 0;
+            for (int i = 1; i < runs.length; i += 2) {
+                cardinality += runs[i] + 1;
+            }
+            this.cardinality = cardinality;
+        }
+
+        private static RunContainer of(Container container) {
+            var runs = new char[container.numRuns() * 2];
+            var iterator = container.iterator();
+            int r = -2;
+            int previous = -2;
+            while (iterator.hasNext()) {
+                int value = iterator.nextInt();
+                if (value == previous + 1) {
+                    runs[r + 1]++;
+                } else {
+                    r += 2;
+                    runs[r] = (char) value;
+                }
+                previous = value;
+            }
+            return new RunContainer(runs);
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char value) {
+            int low = 0, high = runs.length / 2 - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int start = runs[mid * 2];
+                if (value < start) {
+                    high = mid - 1;
+                } else if (value > start + runs[mid * 2 + 1]) {
+                    low = mid + 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        char first() {
+            return runs[0];
+        }
+
+        @Override
+        char last() {
+            return (char) (runs[runs.length - 2] + runs[runs.length - 1]);
+        }
+
+        @Override
+        int numRuns() {
+            return runs.length / 2;
+        }
+
+        @Override
+        int memSize() {
+            return 16 + 16 + runs.length * 2;
+        }
+
+        @Override
+        int copyTo(int[] dst, int offset, int high) {
+            for (int i = 0; i < runs.length; i += 2) {
+                int end = runs[i] + runs[i + 1];
+                for (int value = runs[i]; value <= end; value++) {
+                    dst[offset++] = high | value;
+                }
+            }
+            return offset;
+        }
+
+        @Override
+        PrimitiveIterator.OfInt iterator() {
+            return new PrimitiveIterator.OfInt() {
+                private int run;
+                private int value = runs.length == 0 ? 0 : runs[0];
+
+                @Override
+                public boolean hasNext() {
+                    return run < runs.length;
+                }
+
+                @Override
+                public int nextInt() {
+                    if (run == runs.length) {
+                        throw new NoSuchElementException();
+                    }
+                    int result = value;
+                    if (value == runs[run] + runs[run + 1]) {
+                        run += 2;
+                        if (run < runs.length) {
+                            value = runs[run];
+                        }
+                    } else {
+                        value++;
+                    }
+                    return result;
+                }
+            };
+        }
+
+        @Override
+        BitmapContainer toBitmap() {
+            var words = new long[BITMAP_WORDS];
+            for (int i = 0; i < runs.length; i += 2) {
+                int end = runs[i] + runs[i + 1];
+                for (int value = runs[i]; value <= end; value++) {
+                    words[value >>> 6] |= 1L << value;
+                }
+            }
+            return new BitmapContainer(words);
+        }
+
+        @Override
+        Container unrun() {
+            return cardinality <= MAX_ARRAY_SIZE ? new ArrayContainer(values()) : toBitmap();
+        }
+    }
+
+    private class OrdinalIterator implements PrimitiveIterator.OfInt {
+
+        private int index = -1;
+        private int high;
+        private PrimitiveIterator.OfInt current = new ArrayContainer(new char[0]).iterator();
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext() && index < keys.length - 1) {
+                index++;
+                high = keys[index] << 16;
+                current = containers[index].iterator();
+            }
+            return current.hasNext();
+        }
+
+        @Override
+        public int nextInt() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return high | current.nextInt();
+        }
+    }
+}
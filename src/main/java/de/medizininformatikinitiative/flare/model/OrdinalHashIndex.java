@@ -0,0 +1,60 @@
+package de.medizininformatikinitiative.flare.model;
+
+import java.util.Arrays;
+
+/**
+ * An immutable open addressing hash set of ordinals used as membership index of
+ * {@link Population populations}.
+ * <p>
+ * The table has at least twice the size of the number of ordinals, so that lookups need only a few probes on average.
+ */
+final class OrdinalHashIndex {
+
+    private static final int EMPTY = -1;
+
+    private final int[] table;
+    private final int mask;
+
+    private OrdinalHashIndex(int[] table) {
+        this.table = table;
+        this.mask = table.length - 1;
+    }
+
+    static OrdinalHashIndex of(int[] ordinals) {
+        var table = new int[Integer.highestOneBit(Math.max(ordinals.length, 1) * 2 - 1) << 1];
+        Arrays.fill(table, EMPTY);
+        int mask = table.length - 1;
+        for (int ordinal : ordinals) {
+            int i = hash(ordinal) & mask;
+            while (table[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            table[i] = ordinal;
+        }
+        return new OrdinalHashIndex(table);
+    }
+
+    boolean contains(int ordinal) {
+        int i = hash(ordinal) & mask;
+        int value;
+        while ((value = table[i]) != EMPTY) {
+            if (value == ordinal) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the size of this index in memory.
+     */
+    int memSize() {
+        return 16 + 16 + table.length * 4;
+    }
+
+    private static int hash(int ordinal) {
+        int h = ordinal * 0x9E3779B9;
+        return h ^ h >>> 16;
+    }
+}
@@ -0,0 +1,452 @@
+package de.medizininformatikinitiative.flare.model;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A process-wide dictionary of patient ids.
+ * <p>
+ * Every patient id gets a dense {@code int} ordinal the first time it is seen. The lowest free ordinal is assigned,
+ * starting at zero, so two populations that contain the same patient id always contain the same ordinal. This allows
+ * {@link Population populations} to store sorted arrays of ordinals instead of references to strings and to perform
+ * set operations over primitives.
+ * <p>
+ * Lookups of already known patient ids are lock-free. Only the assignment of new ordinals is serialized. Known patient
+ * ids can also be looked up by their bytes without allocating a string, which is used when populations are read
+ * from the disk cache.
+ * <p>
+ * Patient ids no longer used are removed by {@link #reclaim(Consumer) reclaim}, which is based on epochs. Each lookup
+ * records the current epoch at the ordinal. A reclaim starts a new epoch, records it at all ordinals still referenced
+ * by populations and removes the patient ids whose ordinals were neither looked up nor referenced in the current or
+ * previous epoch. The caller has to reference the ordinals of all populations still reachable, so that only ordinals
+ * collected between a lookup and the creation of a population, like in a {@link Population.Builder builder}, rely on
+ * the epochs. The ordinals of removed patient ids are reused for new patient ids, chunks without any patient id are
+ * released and the ordinals above the highest remaining one are given up, so that the dictionary shrinks to the
+ * patient ids still in use.
+ */
+final class PatientIdDictionary {
+
+    static final PatientIdDictionary INSTANCE = new PatientIdDictionary();
+
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final VarHandle PATIENT_IDS = MethodHandles.arrayElementVarHandle(String[].class);
+    private static final VarHandle EPOCHS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    /**
+     * The memory size of one entry without the chars of the patient id. Measured on a 64-bit JVM with compressed
+     * references at 109 to 112 bytes for 0.1 to 3 million patient ids of 16 chars: 24 bytes for the string, 16 bytes
+     * for the header of its byte array, 16 bytes for the key, 16 bytes for the boxed ordinal, 32 bytes for the node of
+     * the map and 5 to 8 bytes for its share of the table of the map. The byte arrays of patient ids with a length not
+     * divisible by 8 have up to 7 bytes of padding in addition.
+     */
+    private static final int ENTRY_MEM_SIZE = 112;
+
+    private final ConcurrentHashMap<Key, Integer> ordinals = new ConcurrentHashMap<>();
+
+    /**
+     * A reusable key per thread for lookups by bytes. It is never stored in the map.
+     */
+    private final ThreadLocal<BytesKey> bytesKey = ThreadLocal.withInitial(BytesKey::new);
+
+    /**
+     * Maps ordinals to patient ids. The outer array is replaced on growth. Chunks are allocated when their first
+     * ordinal is assigned and released by reclaim when their last patient id is removed.
+     */
+    private volatile String[][] chunks = new String[16][];
+
+    /**
+     * Maps ordinals to the epoch in which they were looked up or referenced last. Allocated and released together
+     * with the chunks.
+     */
+    private volatile int[][] epochChunks = new int[16][];
+
+    private volatile int epoch;
+    private final Object reclaimLock = new Object();
+
+    /**
+     * The number of patient ids per chunk.
+     */
+    private int[] chunkCounts = new int[16];
+
+    /**
+     * The ordinals below {@link #size} which were removed by reclaim and not assigned again.
+     */
+    private final BitSet freeOrdinals = new BitSet();
+
+    /**
+     * No ordinal below this one is free.
+     */
+    private int firstFreeOrdinal;
+
+    /**
+     * One more than the highest assigned ordinal.
+     */
+    private int size;
+    private int chunkCount;
+    private int count;
+    private long charCount;
+
+    PatientIdDictionary() {
+    }
+
+    /**
+     * Returns the ordinal of {@code patientId}, assigning a new one if the patient id wasn't seen before.
+     *
+     * @param patientId the patient id
+     * @return the ordinal of {@code patientId}
+     * @throws NullPointerException if {@code patientId} is {@code null}
+     */
+    int ordinal(String patientId) {
+        var key = new StringKey(requireNonNull(patientId));
+        Integer ordinal = ordinals.get(key);
+        return ordinal != null && touch(ordinal, key) ? ordinal : assign(key, patientId);
+    }
+
+    /**
+     * Returns the ordinal of the patient id consisting of the first {@code length} {@code bytes}, assigning a new
+     * one if the patient id wasn't seen before.
+     * <p>
+     * No string is allocated if the patient id is already known.
+     *
+     * @param bytes  the bytes of the patient id, one byte per char
+     * @param length the number of bytes to use
+     * @return the ordinal of the patient id
+     */
+    int ordinal(byte[] bytes, int length) {
+        var key = bytesKey.get().set(bytes, length);
+        Integer ordinal = ordinals.get(key);
+        return ordinal != null && touch(ordinal, key) ? ordinal : ordinal(new String(bytes, 0, length, ISO_8859_1));
+    }
+
+    /**
+     * Returns the ordinal of {@code patientId} without assigning a new one.
+     *
+     * @param patientId the patient id
+     * @return the ordinal of {@code patientId} or {@code -1} if the patient id wasn't seen before
+     */
+    int ordinalIfPresent(String patientId) {
+        var key = new StringKey(patientId);
+        Integer ordinal = ordinals.get(key);
+        return ordinal != null && key.matches(patientIdIfPresent(ordinal)) ? ordinal : -1;
+    }
+
+    /**
+     * Returns the patient id of {@code ordinal}.
+     * <p>
+     * Only ordinals returned by {@link #ordinal(String) ordinal} and not reclaimed are valid. Because reclaimed
+     * ordinals are reused, the patient id of an invalid ordinal can be {@code null}, a different patient id or the
+     * access can fail.
+     *
+     * @param ordinal the ordinal of a patient id
+     * @return the patient id of {@code ordinal}
+     */
+    String patientId(int ordinal) {
+        return chunks[ordinal >>> CHUNK_BITS][ordinal & CHUNK_MASK];
+    }
+
+    /**
+     * Returns the number of patient ids in this dictionary.
+     *
+     * @return the number of patient ids in this dictionary
+     */
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Returns the estimated size of this dictionary in memory in bytes.
+     * <p>
+     * The size includes the patient ids, the map from patient ids to ordinals, the allocated chunks of the reverse
+     * mapping and of the epochs and the free ordinals. Patient ids are assumed to consist of Latin-1 chars only, which
+     * are stored with one byte per char.
+     *
+     * @return the estimated size of this dictionary in memory
+     */
+    synchronized long memSize() {
+        return 32L + chunks.length * 8L + chunkCount * 2 * (16L + CHUNK_SIZE * 4L) + count * (long) ENTRY_MEM_SIZE +
+                charCount + (size + 7) / 8;
+    }
+
+    /**
+     * Removes all patient ids which weren't looked up since the start of the previous epoch and whose ordinals are not
+     * passed to the consumer given to {@code referenced}.
+     * <p>
+     * The {@code referenced} function has to pass the ordinals of all populations which are still reachable and of all
+     * other places which keep ordinals, like the off-heap cache. It is called without holding the lock used for
+     * assigning new ordinals.
+     * <p>
+     * The ordinals of the removed patient ids are reused, empty chunks are released and the ordinals above the highest
+     * remaining one are given up.
+     *
+     * @param referenced a function passing all referenced ordinals to the consumer given to it
+     * @return the number of removed patient ids
+     */
+    int reclaim(Consumer<IntConsumer> referenced) {
+        synchronized (reclaimLock) {
+            int minEpoch = epoch;
+            epoch = minEpoch + 1;
+            referenced.accept(this::mark);
+            int removed = 0;
+            int chunkCount;
+            synchronized (this) {
+                chunkCount = (size + CHUNK_MASK) >>> CHUNK_BITS;
+            }
+            for (int chunkIndex = 0; chunkIndex < chunkCount; chunkIndex++) {
+                removed += reclaim(chunkIndex, minEpoch);
+            }
+            trim();
+            return removed;
+        }
+    }
+
+    /**
+     * Removes the patient ids of the chunk with {@code chunkIndex} whose epoch is less than {@code minEpoch}.
+     * <p>
+     * A concurrent lookup records the epoch before it checks the patient id and this method clears the patient id
+     * before it checks the epoch again, so that either the lookup sees the cleared patient id and assigns under the
+     * lock or this method sees the recorded epoch and restores the patient id.
+     * <p>
+     * The ordinals of removed patient ids are freed and the chunk is released if no patient id remains.
+     */
+    private synchronized int reclaim(int chunkIndex, int minEpoch) {
+        var patientIds = chunks[chunkIndex];
+        var epochs = epochChunks[chunkIndex];
+        if (patientIds == null) {
+            return 0;
+        }
+        int removed = 0;
+        for (int i = 0; i < CHUNK_SIZE; i++) {
+            var patientId = (String) PATIENT_IDS.getVolatile(patientIds, i);
+            if (patientId == null || (int) EPOCHS.getVolatile(epochs, i) >= minEpoch) {
+                continue;
+            }
+            PATIENT_IDS.setVolatile(patientIds, i, null);
+            if ((int) EPOCHS.getVolatile(epochs, i) >= minEpoch) {
+                PATIENT_IDS.setVolatile(patientIds, i, patientId);
+                continue;
+            }
+            ordinals.remove(new StringKey(patientId));
+            int ordinal = (chunkIndex << CHUNK_BITS) | i;
+            freeOrdinals.set(ordinal);
+            firstFreeOrdinal = Math.min(firstFreeOrdinal, ordinal);
+            count--;
+            charCount -= patientId.length();
+            removed++;
+        }
+        if ((chunkCounts[chunkIndex] -= removed) == 0) {
+            chunks[chunkIndex] = null;
+            epochChunks[chunkIndex] = null;
+            chunkCount--;
+        }
+        return removed;
+    }
+
+    /**
+     * Gives up the free ordinals above the highest assigned one.
+     */
+    private synchronized void trim() {
+        size = size == 0 ? 0 : freeOrdinals.previousClearBit(size - 1) + 1;
+        freeOrdinals.clear(size, Math.max(size, freeOrdinals.length()));
+        firstFreeOrdinal = Math.min(firstFreeOrdinal, size);
+    }
+
+    /**
+     * Records the current epoch at {@code ordinal}. Does nothing if the chunk of {@code ordinal} was released.
+     */
+    private void mark(int ordinal) {
+        var epochs = epochChunks[ordinal >>> CHUNK_BITS];
+        if (epochs != null) {
+            mark(epochs, ordinal & CHUNK_MASK);
+        }
+    }
+
+    private void mark(int[] epochs, int index) {
+        int epoch = this.epoch;
+        if ((int) EPOCHS.getVolatile(epochs, index) != epoch) {
+            EPOCHS.setVolatile(epochs, index, epoch);
+        }
+    }
+
+    /**
+     * Records the current epoch at {@code ordinal} and returns whether its patient id is still the one of
+     * {@code key}.
+     * <p>
+     * The patient id is compared, because the ordinal found in the map can be reclaimed and reused for another patient
+     * id concurrently.
+     */
+    private boolean touch(int ordinal, Key key) {
+        int chunkIndex = ordinal >>> CHUNK_BITS;
+        var epochs = epochChunks[chunkIndex];
+        var patientIds = chunks[chunkIndex];
+        if (epochs == null || patientIds == null) {
+            return false;
+        }
+        int index = ordinal & CHUNK_MASK;
+        mark(epochs, index);
+        return key.matches((String) PATIENT_IDS.getVolatile(patientIds, index));
+    }
+
+    /**
+     * Returns the patient id of {@code ordinal} or {@code null} if its chunk was released.
+     */
+    private String patientIdIfPresent(int ordinal) {
+        var patientIds = chunks[ordinal >>> CHUNK_BITS];
+        return patientIds == null ? null : (String) PATIENT_IDS.getVolatile(patientIds, ordinal & CHUNK_MASK);
+    }
+
+    /**
+     * Returns the ordinal of {@code patientId}, assigning a new one if the patient id isn't present.
+     * <p>
+     * Holding the lock, a present ordinal always has its patient id, because reclaim removes both under the lock.
+     */
+    private synchronized int assign(Key key, String patientId) {
+        Integer ordinal = ordinals.get(key);
+        if (ordinal != null) {
+            mark(ordinal);
+            return ordinal;
+        }
+        int newOrdinal = allocate(patientId);
+        ordinals.put(new StringKey(patientId), newOrdinal);
+        return newOrdinal;
+    }
+
+    /**
+     * Stores {@code patientId} at the lowest free ordinal and returns it.
+     */
+    private int allocate(String patientId) {
+        int ordinal = freeOrdinals.nextSetBit(firstFreeOrdinal);
+        if (ordinal >= 0) {
+            freeOrdinals.clear(ordinal);
+            firstFreeOrdinal = ordinal + 1;
+        } else if (size == Integer.MAX_VALUE) {
+            throw new IllegalStateException("The patient id dictionary is full.");
+        } else {
+            ordinal = size++;
+            firstFreeOrdinal = size;
+        }
+        String[][] chunks = this.chunks;
+        int[][] epochChunks = this.epochChunks;
+        int chunkIndex = ordinal >>> CHUNK_BITS;
+        if (chunkIndex == chunks.length) {
+            this.chunkCounts = Arrays.copyOf(chunkCounts, chunks.length * 2);
+            this.epochChunks = epochChunks = Arrays.copyOf(epochChunks, chunks.length * 2);
+            this.chunks = chunks = Arrays.copyOf(chunks, chunks.length * 2);
+        }
+        if (chunks[chunkIndex] == null) {
+            epochChunks[chunkIndex] = new int[CHUNK_SIZE];
+            chunks[chunkIndex] = new String[CHUNK_SIZE];
+            chunkCount++;
+        }
+        EPOCHS.setVolatile(epochChunks[chunkIndex], ordinal & CHUNK_MASK, epoch);
+        PATIENT_IDS.setVolatile(chunks[chunkIndex], ordinal & CHUNK_MASK, patientId);
+        chunkCounts[chunkIndex]++;
+        count++;
+        charCount += patientId.length();
+        return ordinal;
+    }
+
+    /**
+     * A key of the ordinals map. Keys are equal if they consist of the same chars, independent of their
+     * implementation. The hash code is the same as the one of {@link String#hashCode() String}.
+     */
+    private abstract static class Key {
+
+        abstract int length();
+
+        abstract char charAt(int index);
+
+        /**
+         * Returns whether {@code patientId} consists of the chars of this key. Returns {@code false} for {@code null}.
+         */
+        boolean matches(String patientId) {
+            if (patientId == null || patientId.length() != length()) return false;
+            for (int i = 0; i < length(); i++) {
+                if (charAt(i) != patientId.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public final boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key that) || that.length() != length() || that.hashCode() != hashCode()) return false;
+            for (int i = 0; i < length(); i++) {
+                if (charAt(i) != that.charAt(i)) return false;
+            }
+            return true;
+        }
+    }
+
+    private static final class StringKey extends Key {
+
+        private final String patientId;
+
+        private StringKey(String patientId) {
+            this.patientId = patientId;
+        }
+
+        @Override
+        int length() {
+            return patientId.length();
+        }
+
+        @Override
+        char charAt(int index) {
+            return patientId.charAt(index);
+        }
+
+        @Override
+        boolean matches(String patientId) {
+            return this.patientId.equals(patientId);
+        }
+
+        @Override
+        public int hashCode() {
+            return patientId.hashCode();
+        }
+    }
+
+    private static final class BytesKey extends Key {
+
+        private byte[] bytes;
+        private int length;
+        private int hash;
+
+        private BytesKey set(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+            int hash = 0;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + (bytes[i] & 0xFF);
+            }
+            this.hash = hash;
+            return this;
+        }
+
+        @Override
+        int length() {
+            return length;
+        }
+
+        @Override
+        char charAt(int index) {
+            return (char) (bytes[index] & 0xFF);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
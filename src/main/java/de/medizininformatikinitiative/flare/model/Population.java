@@ -2,11 +2,19 @@ package de.medizininformatikinitiative.flare.model;
 
 import de.medizininformatikinitiative.flare.service.SerializerException;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
-import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.util.Objects.requireNonNull;
 
 /**
@@ -14,22 +22,127 @@ import static java.util.Objects.requireNonNull;
  * <p>
  * Patient ids can have a maximum length of 64 chars.
  * <p>
- * Uses a sorted array of patient ids internally to store the patient ids memory efficient and facilitate fast
+ * Patient ids are mapped to dense {@code int} ordinals by a process-wide {@link PatientIdDictionary dictionary}.
+ * Internally a sorted array of those ordinals is used to store the patient ids memory efficient and facilitate fast
  * operations like {@link #intersection(Population) intersection}, {@link #union(Population) union} and
- * {@link #difference(Population) difference}.
+ * {@link #difference(Population) difference} which merge over primitives instead of comparing strings.
  * <p>
- * Note: {@link #contains(Object) contains} is O(n)
+ * Dense populations, which cover at least one in {@value #DENSITY_FACTOR} ordinals of their range, are stored as a
+ * compressed {@link OrdinalBitmap bitmap} instead. The representation depends only on the patient ids and is chosen
+ * automatically after every operation.
+ * <p>
+ * Set operations on large sparse populations are split into partitions of equal value ranges which are processed in
+ * parallel on the common fork-join pool.
+ * <p>
+ * The iteration order follows the ordinals, which are assigned in the order in which the patient ids were first seen by
+ * the process, reusing the ordinals of {@link #reclaimPatientIds(Stream) reclaimed} patient ids.
+ * <p>
+ * {@link #contains(Object) contains} uses a binary search over the sorted ordinals and is O(log n). Populations which
+ * are probed repeatedly build a hashed membership index on demand, after which {@code contains} is O(1).
  */
 public final class Population extends AbstractSet<String> {
 
-    private static final Population EMPTY = new Population(new String[0], Instant.EPOCH);
+    private static final PatientIdDictionary DICTIONARY = PatientIdDictionary.INSTANCE;
+
+    /**
+     * Weak references to all non-empty populations, so that {@link #reclaimPatientIds(Stream) reclaimPatientIds}
+     * keeps the patient ids of all populations still reachable. References of collected populations are removed
+     * whenever a new population is created.
+     */
+    private static final Set<Reference<Population>> REACHABLE = ConcurrentHashMap.newKeySet();
+    private static final ReferenceQueue<Population> COLLECTED = new ReferenceQueue<>();
+
+    private static final Population EMPTY = new Population(new int[0], null, Instant.EPOCH);
+
+    /**
+     * The minimum size of populations stored as bitmap.
+     */
+    private static final int MIN_BITMAP_SIZE = 4096;
+
+    /**
+     * Populations with at least one in {@code DENSITY_FACTOR} ordinals of their range are stored as bitmap. At that
+     * density the containers of the bitmap hold 4096 values or more, which need two bytes per value or less.
+     */
+    private static final int DENSITY_FACTOR = 16;
+
+    /**
+     * The number of {@link #contains(Object) contains} calls after which a hashed membership index is built.
+     */
+    private static final int INDEX_THRESHOLD = 64;
+
+    /**
+     * The size ratio above which set operations on sorted ordinals search the values of the smaller operand in the
+     * larger one by galloping instead of merging both linearly.
+     */
+    private static final int GALLOP_RATIO = 32;
+
+    /**
+     * The minimum combined size of two sorted ordinal arrays for which set operations are split into partitions that
+     * are processed in parallel.
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 18;
+
+    /**
+     * The minimum combined size of the partitions of a parallel set operation.
+     */
+    private static final int MIN_PARTITION_SIZE = 1 << 16;
+
+    /**
+     * The minimum size of populations for which a hashed membership index is built. Smaller populations are searched
+     * fast enough.
+     */
+    private static final int MIN_INDEX_SIZE = 256;
+
+    /**
+     * The sorted ordinals of sparse populations or {@code null} if {@link #bitmap} is used.
+     */
+    private final int[] patientOrdinals;
 
-    private final String[] patientIds;
+    /**
+     * The bitmap of dense populations or {@code null} if {@link #patientOrdinals} is used.
+     */
+    private final OrdinalBitmap bitmap;
     private final Instant created;
 
-    private Population(String[] patientIds, Instant created) {
-        this.patientIds = patientIds;
+    /**
+     * The number of {@code contains} calls. Updated without synchronization, because lost updates only delay building
+     * the {@link #index}.
+     */
+    private int containsCount;
+    private volatile OrdinalHashIndex index;
+
+    private Population(int[] patientOrdinals, OrdinalBitmap bitmap, Instant created) {
+        this.patientOrdinals = patientOrdinals;
+        this.bitmap = bitmap;
         this.created = created;
+        if (patientOrdinals == null || patientOrdinals.length > 0) {
+            track(this);
+        }
+    }
+
+    private static void track(Population population) {
+        for (Reference<?> reference; (reference = COLLECTED.poll()) != null; ) {
+            REACHABLE.remove(reference);
+        }
+        REACHABLE.add(new WeakReference<>(population, COLLECTED));
+    }
+
+    private static Population of(int[] sortedOrdinals, Instant created) {
+        int n = sortedOrdinals.length;
+        return n > 0 && isDense(n, sortedOrdinals[0], sortedOrdinals[n - 1])
+                ? new Population(null, OrdinalBitmap.of(sortedOrdinals, n), created)
+                : new Population(sortedOrdinals, null, created);
+    }
+
+    private static Population of(OrdinalBitmap bitmap, Instant created) {
+        int n = bitmap.cardinality();
+        return n > 0 && isDense(n, bitmap.first(), bitmap.last())
+                ? new Population(null, bitmap, created)
+                : new Population(bitmap.toArray(), null, created);
+    }
+
+    private static boolean isDense(int size, int firstOrdinal, int lastOrdinal) {
+        return size >= MIN_BITMAP_SIZE && (long) size * DENSITY_FACTOR >= (long) lastOrdinal - firstOrdinal + 1;
     }
 
     public static Population of() {
@@ -38,7 +151,7 @@ public final class Population extends AbstractSet<String> {
 
     public static Population of(String patientId1) {
         checkPatientId(patientId1);
-        return new Population(new String[]{patientId1.intern()}, Instant.EPOCH);
+        return new Population(new int[]{DICTIONARY.ordinal(patientId1)}, null, Instant.EPOCH);
     }
 
     /**
@@ -54,24 +167,56 @@ public final class Population extends AbstractSet<String> {
     public static Population of(String patientId1, String patientId2) {
         checkPatientId(patientId1);
         checkPatientId(patientId2);
-        var id1 = patientId1.intern();
-        var id2 = patientId2.intern();
-        if (id1.equals(id2)) {
-            throw new IllegalArgumentException("duplicate patient id: " + id1);
+        var ordinal1 = DICTIONARY.ordinal(patientId1);
+        var ordinal2 = DICTIONARY.ordinal(patientId2);
+        if (ordinal1 == ordinal2) {
+            throw new IllegalArgumentException("duplicate patient id: " + patientId1);
         }
-        return new Population(id1.compareTo(id2) < 0 ? new String[]{id1, id2} : new String[]{id2, id1}, Instant.EPOCH);
+        return new Population(ordinal1 < ordinal2 ? new int[]{ordinal1, ordinal2} : new int[]{ordinal2, ordinal1},
+                null, Instant.EPOCH);
     }
 
     public static Population copyOf(Collection<String> patientIds) {
-        var idSet = Set.copyOf(patientIds);
-        String[] internedIds = new String[idSet.size()];
+        var ordinals = new int[patientIds.size()];
         int i = 0;
-        for (String id : idSet) {
+        for (String id : patientIds) {
             checkPatientId(id);
-            internedIds[i++] = id.intern();
+            ordinals[i++] = DICTIONARY.ordinal(id);
         }
-        Arrays.sort(internedIds);
-        return new Population(internedIds, Instant.EPOCH);
+        return of(sortedDistinct(ordinals, i), Instant.EPOCH);
+    }
+
+    /**
+     * Returns a new {@link Builder builder}.
+     *
+     * @return a new builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Sorts the first {@code length} ordinals and removes duplicates.
+     */
+    private static int[] sortedDistinct(int[] ordinals, int length) {
+        int r = sortDistinct(ordinals, length);
+        return r == ordinals.length ? ordinals : Arrays.copyOf(ordinals, r);
+    }
+
+    /**
+     * Sorts the first {@code length} ordinals and moves the distinct ones to the front in place.
+     *
+     * @return the number of distinct ordinals
+     */
+    private static int sortDistinct(int[] ordinals, int length) {
+        Arrays.sort(ordinals, 0, length);
+        int r = 0;
+        for (int i = 0; i < length; i++) {
+            if (r == 0 || ordinals[r - 1] != ordinals[i]) {
+                ordinals[r++] = ordinals[i];
+            }
+        }
+        return r;
     }
 
     /**
@@ -92,12 +237,12 @@ public final class Population extends AbstractSet<String> {
      * @return a new population with {@code created} set to the given value
      */
     public Population withCreated(Instant created) {
-        return new Population(patientIds, requireNonNull(created));
+        return new Population(patientOrdinals, bitmap, requireNonNull(created));
     }
 
     @Override
     public boolean isEmpty() {
-        return patientIds.length == 0;
+        return size() == 0;
     }
 
     @Override
@@ -107,81 +252,457 @@ public final class Population extends AbstractSet<String> {
 
     @Override
     public int size() {
-        return patientIds.length;
+        return patientOrdinals != null ? patientOrdinals.length : bitmap.cardinality();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof String patientId)) {
+            return false;
+        }
+        int ordinal = DICTIONARY.ordinalIfPresent(patientId);
+        return ordinal >= 0 && containsOrdinal(ordinal);
+    }
+
+    private boolean containsOrdinal(int ordinal) {
+        if (bitmap != null) {
+            return bitmap.contains(ordinal);
+        }
+        var index = this.index;
+        if (index != null) {
+            return index.contains(ordinal);
+        }
+        if (patientOrdinals.length >= MIN_INDEX_SIZE && ++containsCount == INDEX_THRESHOLD) {
+            this.index = OrdinalHashIndex.of(patientOrdinals);
+        }
+        return Arrays.binarySearch(patientOrdinals, ordinal) >= 0;
     }
 
     /**
      * Returns the size of this population in memory.
      * <p>
-     * The calculation uses the fact that an array is used to store the patient ids internally. In addition it assumes
-     * that all patient ids are {@link String#intern() interned}. Each entry is a reference to a string. References
-     * have a size of 4 bytes.
+     * The calculation uses the fact that an array of {@code int} ordinals is used to store the patient ids internally.
+     * Each entry has a size of 4 bytes.
      * <p>
      * So the memory size is 24 bytes for the population class, 24 bytes for the instant, 20 bytes for the array and 4
-     * times the size of the array for the array holding the string references. The strings itself do not count, because
-     * they are interned.
+     * times the size of the array for the ordinals. The patient ids itself do not count, because they are held only
+     * once by the {@link PatientIdDictionary dictionary}.
+     * <p>
+     * For dense populations stored as bitmap, the size of the {@link OrdinalBitmap#memSize() bitmap} is used instead
+     * of the array.
+     * <p>
+     * The hashed membership index is not included, because it is built on demand after the population may be weighed
+     * by a cache already. Its size is returned by {@link #indexMemSize() indexMemSize} instead, so that the size
+     * returned here never changes.
      *
      * @return the size of this population in memory
      */
     public int memSize() {
-        return 68 + patientIds.length * 4;
+        return patientOrdinals == null ? 48 + bitmap.memSize() : 68 + patientOrdinals.length * 4;
+    }
+
+    /**
+     * Returns the size of the hashed membership index of this population in memory or zero if it isn't built yet.
+     *
+     * @return the size of the hashed membership index in memory
+     */
+    public int indexMemSize() {
+        var index = this.index;
+        return index == null ? 0 : index.memSize();
+    }
+
+    /**
+     * Returns the number of distinct patient ids seen by this process and not reclaimed yet.
+     * <p>
+     * All populations share the patient ids through the {@link PatientIdDictionary dictionary}, which only shrinks by
+     * {@link #reclaimPatientIds(Stream) reclaimPatientIds}.
+     *
+     * @return the number of distinct patient ids seen by this process and not reclaimed yet
+     */
+    public static int patientIdCount() {
+        return DICTIONARY.size();
+    }
+
+    /**
+     * Returns the estimated size of all patient ids seen by this process in memory in bytes.
+     * <p>
+     * This is the memory not accounted for by {@link #memSize() memSize} of the individual populations.
+     *
+     * @return the estimated size of all patient ids in memory
+     */
+    public static long patientIdMemSize() {
+        return DICTIONARY.memSize();
+    }
+
+    /**
+     * Removes the patient ids which aren't part of any population still reachable or any of the
+     * {@code offHeapBuffers} and weren't looked up since the previous call from the shared dictionary.
+     * <p>
+     * The {@code offHeapBuffers} have to include all buffers created by {@link #toOffHeapBuffer()} which are still
+     * used, because they keep ordinals outside of populations. The buffers are walked without decoding them into
+     * populations. Patient ids only collected by a {@link Builder builder} so far stay valid if they were looked up
+     * after the previous call, so this method should be called in intervals much longer than the execution of any
+     * query.
+     * <p>
+     * The ordinals of removed patient ids are reused for new patient ids.
+     *
+     * @param offHeapBuffers all off-heap buffers still used
+     * @return the number of removed patient ids
+     */
+    public static int reclaimPatientIds(Stream<ByteBuffer> offHeapBuffers) {
+        return DICTIONARY.reclaim(consumer -> {
+            for (var reference : REACHABLE) {
+                var population = reference.get();
+                if (population != null) {
+                    population.ordinalIterator().forEachRemaining(consumer);
+                }
+            }
+            offHeapBuffers.forEach(buffer -> forEachOffHeapOrdinal(buffer, consumer));
+        });
     }
 
     public Population intersection(Population other) {
-        int i = 0, j = 0, r = 0;
-        var res = new String[Math.min(patientIds.length, other.patientIds.length)];
+        var created = olderCreated(other);
+        if (patientOrdinals != null && other.patientOrdinals != null) {
+            return of(parallel(patientOrdinals, other.patientOrdinals, Population::intersection), created);
+        } else if (patientOrdinals != null) {
+            return of(filter(patientOrdinals, other.bitmap, true), created);
+        } else if (other.patientOrdinals != null) {
+            return of(filter(other.patientOrdinals, bitmap, true), created);
+        }
+        return of(bitmap.and(other.bitmap), created);
+    }
+
+    public Population union(Population other) {
+        var created = olderCreated(other);
+        if (patientOrdinals != null && other.patientOrdinals != null) {
+            return of(parallel(patientOrdinals, other.patientOrdinals, Population::union), created);
+        }
+        return of(bitmap().or(other.bitmap()), created);
+    }
+
+    public Population difference(Population other) {
+        var created = olderCreated(other);
+        if (patientOrdinals != null && other.patientOrdinals != null) {
+            return of(parallel(patientOrdinals, other.patientOrdinals, Population::difference), created);
+        } else if (patientOrdinals != null) {
+            return of(filter(patientOrdinals, other.bitmap, false), created);
+        }
+        return of(bitmap.andNot(other.bitmap()), created);
+    }
+
+    /**
+     * Returns the union of all {@code populations}.
+     * <p>
+     * The sorted ordinals of all sparse populations are combined in a single k-way merge, so that no intermediate
+     * results are allocated. Dense populations are combined as bitmaps.
+     *
+     * @param populations the populations to union
+     * @return the union of all {@code populations} with the oldest created instant of them or an empty population if
+     * {@code populations} is empty
+     */
+    public static Population unionAll(List<Population> populations) {
+        if (populations.isEmpty()) {
+            return EMPTY;
+        } else if (populations.size() == 1) {
+            return populations.get(0);
+        }
+
+        var arrays = new ArrayList<int[]>(populations.size());
+        OrdinalBitmap bitmap = null;
+        for (Population population : populations) {
+            if (population.bitmap != null) {
+                bitmap = bitmap == null ? population.bitmap : bitmap.or(population.bitmap);
+            } else if (population.patientOrdinals.length > 0) {
+                arrays.add(population.patientOrdinals);
+            }
+        }
+
+        var created = oldestCreated(populations);
+        var ordinals = unionAll(arrays.toArray(new int[0][]));
+        return bitmap == null
+                ? of(ordinals, created)
+                : of(ordinals.length == 0 ? bitmap : bitmap.or(OrdinalBitmap.of(ordinals, ordinals.length)), created);
+    }
+
+    /**
+     * Returns the intersection of all {@code populations}.
+     * <p>
+     * Starts with the smallest population and intersects it with the next larger ones, switching to galloping search
+     * if their sizes differ a lot, so that the cost depends mainly on the size of the smallest population. Stops as
+     * soon as the intermediate result is empty.
+     *
+     * @param populations the populations to intersect
+     * @return the intersection of all {@code populations} with the oldest created instant of them
+     * @throws IllegalArgumentException if {@code populations} is empty
+     */
+    public static Population intersectAll(List<Population> populations) {
+        if (populations.isEmpty()) {
+            throw new IllegalArgumentException("Can't intersect an empty list of populations.");
+        } else if (populations.size() == 1) {
+            return populations.get(0);
+        }
+
+        var sorted = populations.stream().sorted(Comparator.comparingInt(Population::size)).toList();
+        int[] ordinals = sorted.get(0).patientOrdinals;
+        OrdinalBitmap bitmap = sorted.get(0).bitmap;
+        for (int i = 1; i < sorted.size() && (ordinals == null || ordinals.length > 0); i++) {
+            var next = sorted.get(i);
+            if (ordinals != null) {
+                ordinals = next.patientOrdinals != null
+                        ? parallel(ordinals, next.patientOrdinals, Population::intersection)
+                        : filter(ordinals, next.bitmap, true);
+            } else if (next.patientOrdinals != null) {
+                ordinals = filter(next.patientOrdinals, bitmap, true);
+                bitmap = null;
+            } else {
+                bitmap = bitmap.and(next.bitmap);
+            }
+        }
+
+        var created = oldestCreated(populations);
+        return ordinals != null ? of(ordinals, created) : of(bitmap, created);
+    }
+
+    /**
+     * Returns the size of the {@link #intersection(Population) intersection} of this population and {@code other}
+     * without creating it.
+     *
+     * @param other the population to intersect with
+     * @return the size of the intersection of this population and {@code other}
+     */
+    public int intersectionSize(Population other) {
+        return intersectionDifferenceSize(List.of(this, other), List.of());
+    }
+
+    /**
+     * Returns the size of the {@link #difference(Population) difference} of this population and {@code other} without
+     * creating it.
+     *
+     * @param other the population to subtract
+     * @return the size of the difference of this population and {@code other}
+     */
+    public int differenceSize(Population other) {
+        return intersectionDifferenceSize(List.of(this), List.of(other));
+    }
+
+    /**
+     * Returns the size of the intersection of all {@code included} populations minus the union of all
+     * {@code excluded} populations without creating any intermediate or result population.
+     * <p>
+     * Iterates over the smallest included population and probes every other population for each patient. Sparse
+     * populations are probed using galloping search starting at the position of the previous patient.
+     *
+     * @param included the populations to intersect
+     * @param excluded the populations to subtract from the intersection
+     * @return the size of the resulting population
+     * @throws IllegalArgumentException if {@code included} is empty
+     */
+    public static int intersectionDifferenceSize(List<Population> included, List<Population> excluded) {
+        if (included.isEmpty()) {
+            throw new IllegalArgumentException("Can't intersect an empty list of populations.");
+        }
+
+        var sorted = included.stream().sorted(Comparator.comparingInt(Population::size)).toList();
+        var includedCursors = new int[sorted.size()];
+        var excludedCursors = new int[excluded.size()];
+        int count = 0;
+        var ordinals = sorted.get(0).ordinalIterator();
+        candidates:
+        while (ordinals.hasNext()) {
+            int ordinal = ordinals.nextInt();
+            for (int i = 1; i < sorted.size(); i++) {
+                if (!sorted.get(i).probe(includedCursors, i, ordinal)) {
+                    continue candidates;
+                }
+            }
+            for (int i = 0; i < excluded.size(); i++) {
+                if (excluded.get(i).probe(excludedCursors, i, ordinal)) {
+                    continue candidates;
+                }
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns whether this population contains {@code ordinal}.
+     * <p>
+     * Has to be called with ascending ordinals, because {@code cursors[i]} holds the search position of sparse
+     * populations between calls.
+     */
+    private boolean probe(int[] cursors, int i, int ordinal) {
+        if (bitmap != null) {
+            return bitmap.contains(ordinal);
+        }
+        int cursor = gallop(patientOrdinals, cursors[i], ordinal);
+        cursors[i] = cursor;
+        return cursor < patientOrdinals.length && patientOrdinals[cursor] == ordinal;
+    }
+
+    private Instant olderCreated(Population other) {
+        return created.isBefore(other.created) ? created : other.created;
+    }
+
+    private static Instant oldestCreated(List<Population> populations) {
+        var created = populations.get(0).created;
+        for (Population population : populations) {
+            if (population.created.isBefore(created)) {
+                created = population.created;
+            }
+        }
+        return created;
+    }
+
+    private OrdinalBitmap bitmap() {
+        return bitmap != null ? bitmap : OrdinalBitmap.of(patientOrdinals, patientOrdinals.length);
+    }
+
+    /**
+     * Applies the set {@code operation} to {@code a} and {@code b} in parallel if their combined size is at least
+     * {@link #PARALLEL_THRESHOLD} and their sizes don't differ by more than {@link #GALLOP_RATIO}. Otherwise the
+     * operation is applied sequentially.
+     * <p>
+     * Values of the larger array at evenly spaced indices are used as pivots. Their ranks in both arrays split the
+     * arrays into partitions covering the same ranges of values, so that equal values always end up in the same
+     * partition. The partitions are processed on the common fork-join pool and their results are concatenated in
+     * order. This is valid for intersection, union and difference, because they keep every value in its range.
+     */
+    private static int[] parallel(int[] a, int[] b, RangeOperation operation) {
+        var large = a.length >= b.length ? a : b;
+        var small = a.length >= b.length ? b : a;
+        long size = (long) a.length + b.length;
+        int partitions = (int) Math.min(ForkJoinPool.getCommonPoolParallelism() * 4L, size / MIN_PARTITION_SIZE);
+        if (size < PARALLEL_THRESHOLD || (long) small.length * GALLOP_RATIO < large.length || partitions < 2 ||
+                ForkJoinPool.getCommonPoolParallelism() < 2) {
+            return operation.apply(a, 0, a.length, b, 0, b.length);
+        }
+        return parallel(a, b, operation, partitions);
+    }
+
+    /**
+     * Applies the set {@code operation} to {@code a} and {@code b} split into {@code partitions} processed in parallel.
+     * <p>
+     * Package-private for testing partitions independent of the size of the common fork-join pool.
+     */
+    static int[] parallel(int[] a, int[] b, RangeOperation operation, int partitions) {
+        var large = a.length >= b.length ? a : b;
+        var aBounds = new int[partitions + 1];
+        var bBounds = new int[partitions + 1];
+        for (int k = 1; k < partitions; k++) {
+            int pivot = large[(int) ((long) k * large.length / partitions)];
+            aBounds[k] = rank(a, pivot);
+            bBounds[k] = rank(b, pivot);
+        }
+        aBounds[partitions] = a.length;
+        bBounds[partitions] = b.length;
+
+        var results = IntStream.range(0, partitions).parallel()
+                .mapToObj(k -> operation.apply(a, aBounds[k], aBounds[k + 1], b, bBounds[k], bBounds[k + 1]))
+                .toArray(int[][]::new);
 
-        while (i < patientIds.length && j < other.patientIds.length) {
-            int cmp = patientIds[i].compareTo(other.patientIds[j]);
-            if (cmp < 0) {
+        int length = 0;
+        for (int[] result : results) {
+            length += result.length;
+        }
+        var res = new int[length];
+        int r = 0;
+        for (int[] result : results) {
+            System.arraycopy(result, 0, res, r, result.length);
+            r += result.length;
+        }
+        return res;
+    }
+
+    /**
+     * A set operation on the range {@code [aFrom, aTo)} of the sorted array {@code a} and the range
+     * {@code [bFrom, bTo)} of the sorted array {@code b}.
+     */
+    @FunctionalInterface
+    interface RangeOperation {
+        int[] apply(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo);
+    }
+
+    /**
+     * Returns the number of values in the sorted array {@code a} which are less than {@code value}.
+     */
+    private static int rank(int[] a, int value) {
+        int index = Arrays.binarySearch(a, value);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * Intersects the ranges of {@code a} and {@code b} using a linear merge or a galloping search if the sizes differ
+     * by more than {@link #GALLOP_RATIO}.
+     */
+    static int[] intersection(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo) {
+        int aLength = aTo - aFrom, bLength = bTo - bFrom;
+        if ((long) aLength * GALLOP_RATIO < bLength) {
+            return gallopingIntersection(a, aFrom, aTo, b, bFrom, bTo);
+        } else if ((long) bLength * GALLOP_RATIO < aLength) {
+            return gallopingIntersection(b, bFrom, bTo, a, aFrom, aTo);
+        }
+
+        int i = aFrom, j = bFrom, r = 0;
+        var res = new int[Math.min(aLength, bLength)];
+
+        while (i < aTo && j < bTo) {
+            if (a[i] < b[j]) {
                 i++;
-            } else if (cmp > 0) {
+            } else if (a[i] > b[j]) {
                 j++;
             } else {
-                res[r++] = patientIds[i++];
+                res[r++] = a[i++];
                 j++;
             }
         }
 
-        return new Population(Arrays.copyOf(res, r), created.isBefore(other.created) ? created : other.created);
+        return Arrays.copyOf(res, r);
     }
 
-    public Population union(Population other) {
-        int i = 0, j = 0, r = 0;
-        var res = new String[patientIds.length + other.patientIds.length];
-
-        while (i < patientIds.length && j < other.patientIds.length) {
-            int cmp = patientIds[i].compareTo(other.patientIds[j]);
-            if (cmp < 0) {
-                res[r++] = patientIds[i++];
-            } else if (cmp > 0) {
-                res[r++] = other.patientIds[j++];
+    static int[] union(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo) {
+        int i = aFrom, j = bFrom, r = 0;
+        var res = new int[aTo - aFrom + bTo - bFrom];
+
+        while (i < aTo && j < bTo) {
+            if (a[i] < b[j]) {
+                res[r++] = a[i++];
+            } else if (a[i] > b[j]) {
+                res[r++] = b[j++];
             } else {
-                res[r++] = patientIds[i++];
+                res[r++] = a[i++];
                 j++;
             }
         }
 
-        while (i < patientIds.length) {
-            res[r++] = patientIds[i++];
-        }
+        System.arraycopy(a, i, res, r, aTo - i);
+        r += aTo - i;
+        System.arraycopy(b, j, res, r, bTo - j);
+        r += bTo - j;
 
-        while (j < other.patientIds.length) {
-            res[r++] = other.patientIds[j++];
+        return Arrays.copyOf(res, r);
+    }
+
+    /**
+     * Subtracts the range of {@code b} from the range of {@code a} using a linear merge or a galloping search if the
+     * sizes differ by more than {@link #GALLOP_RATIO}.
+     */
+    static int[] difference(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo) {
+        int aLength = aTo - aFrom, bLength = bTo - bFrom;
+        if ((long) aLength * GALLOP_RATIO < bLength) {
+            return gallopingDifferenceOfSmall(a, aFrom, aTo, b, bFrom, bTo);
+        } else if ((long) bLength * GALLOP_RATIO < aLength) {
+            return gallopingDifferenceOfLarge(a, aFrom, aTo, b, bFrom, bTo);
         }
 
-        return new Population(Arrays.copyOf(res, r), created.isBefore(other.created) ? created : other.created);
-    }
+        int i = aFrom, j = bFrom, r = 0;
+        var res = new int[aLength];
 
-    public Population difference(Population other) {
-        int i = 0, j = 0, r = 0;
-        var res = new String[patientIds.length];
-
-        while (i < patientIds.length && j < other.patientIds.length) {
-            int cmp = patientIds[i].compareTo(other.patientIds[j]);
-            if (cmp < 0) {
-                res[r++] = patientIds[i++];
-            } else if (cmp > 0) {
+        while (i < aTo && j < bTo) {
+            if (a[i] < b[j]) {
+                res[r++] = a[i++];
+            } else if (a[i] > b[j]) {
                 j++;
             } else {
                 i++;
@@ -189,11 +710,193 @@ public final class Population extends AbstractSet<String> {
             }
         }
 
-        while (i < patientIds.length) {
-            res[r++] = patientIds[i++];
+        System.arraycopy(a, i, res, r, aTo - i);
+        r += aTo - i;
+
+        return Arrays.copyOf(res, r);
+    }
+
+    /**
+     * Merges the sorted {@code arrays} using a binary min-heap of array indices ordered by the current value of each
+     * array.
+     */
+    private static int[] unionAll(int[][] arrays) {
+        if (arrays.length == 0) {
+            return new int[0];
+        } else if (arrays.length == 1) {
+            return arrays[0];
+        }
+
+        int total = 0;
+        for (int[] array : arrays) {
+            total += array.length;
         }
 
-        return new Population(Arrays.copyOf(res, r), created.isBefore(other.created) ? created : other.created);
+        var res = new int[total];
+        var cursors = new int[arrays.length];
+        var heap = new int[arrays.length];
+        int heapSize = arrays.length;
+        for (int i = 0; i < heapSize; i++) {
+            heap[i] = i;
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(arrays, cursors, heap, heapSize, i);
+        }
+
+        int r = 0;
+        while (heapSize > 0) {
+            int top = heap[0];
+            int value = arrays[top][cursors[top]];
+            if (r == 0 || res[r - 1] != value) {
+                res[r++] = value;
+            }
+            if (++cursors[top] == arrays[top].length) {
+                heap[0] = heap[--heapSize];
+            }
+            if (heapSize > 0) {
+                siftDown(arrays, cursors, heap, heapSize, 0);
+            }
+        }
+
+        return Arrays.copyOf(res, r);
+    }
+
+    private static void siftDown(int[][] arrays, int[] cursors, int[] heap, int heapSize, int i) {
+        int index = heap[i];
+        int value = arrays[index][cursors[index]];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            int childValue = arrays[heap[child]][cursors[heap[child]]];
+            if (child + 1 < heapSize) {
+                int rightValue = arrays[heap[child + 1]][cursors[heap[child + 1]]];
+                if (rightValue < childValue) {
+                    child++;
+                    childValue = rightValue;
+                }
+            }
+            if (value <= childValue) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = index;
+    }
+
+    /**
+     * Intersects the range of {@code small} with the range of {@code large} by searching each value of {@code small}
+     * in {@code large} using galloping search starting at the position of the previous value.
+     */
+    private static int[] gallopingIntersection(int[] small, int smallFrom, int smallTo, int[] large, int largeFrom,
+                                               int largeTo) {
+        int j = largeFrom, r = 0;
+        var res = new int[smallTo - smallFrom];
+
+        for (int i = smallFrom; i < smallTo; i++) {
+            int value = small[i];
+            j = gallop(large, j, largeTo, value);
+            if (j == largeTo) {
+                break;
+            }
+            if (large[j] == value) {
+                res[r++] = value;
+            }
+        }
+
+        return Arrays.copyOf(res, r);
+    }
+
+    /**
+     * Subtracts the large range of {@code b} from the small range of {@code a} by searching each value of {@code a}
+     * in {@code b} using galloping search.
+     */
+    private static int[] gallopingDifferenceOfSmall(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo) {
+        int j = bFrom, r = 0;
+        var res = new int[aTo - aFrom];
+
+        for (int i = aFrom; i < aTo; i++) {
+            int value = a[i];
+            j = gallop(b, j, bTo, value);
+            if (j == bTo || b[j] != value) {
+                res[r++] = value;
+            }
+        }
+
+        return Arrays.copyOf(res, r);
+    }
+
+    /**
+     * Subtracts the small range of {@code b} from the large range of {@code a} by searching each value of {@code b}
+     * in {@code a} using galloping search and copying the ranges of {@code a} in between.
+     */
+    private static int[] gallopingDifferenceOfLarge(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo) {
+        int i = aFrom, r = 0;
+        var res = new int[aTo - aFrom];
+
+        for (int j = bFrom; j < bTo; j++) {
+            int value = b[j];
+            int k = gallop(a, i, aTo, value);
+            System.arraycopy(a, i, res, r, k - i);
+            r += k - i;
+            if (k == aTo) {
+                return Arrays.copyOf(res, r);
+            }
+            i = a[k] == value ? k + 1 : k;
+        }
+        System.arraycopy(a, i, res, r, aTo - i);
+        r += aTo - i;
+
+        return r == a.length ? a : Arrays.copyOf(res, r);
+    }
+
+    private static int gallop(int[] a, int from, int value) {
+        return gallop(a, from, a.length, value);
+    }
+
+    /**
+     * Returns the index of the first value in {@code a} in the range {@code [from, to)} which is not less than
+     * {@code value} or {@code to} if there is no such value.
+     * <p>
+     * Doubles the step size until a value not less than {@code value} is found and does a binary search in the last
+     * step afterwards.
+     */
+    private static int gallop(int[] a, int from, int to, int value) {
+        if (from >= to || a[from] >= value) {
+            return from;
+        }
+        int bound = 1;
+        while (bound < to - from && a[from + bound] < value) {
+            bound <<= 1;
+        }
+        int low = from + (bound >> 1) + 1, high = from + Math.min(bound, to - from);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (a[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the ordinals for which {@code bitmap.contains} equals {@code keep}.
+     */
+    private static int[] filter(int[] ordinals, OrdinalBitmap bitmap, boolean keep) {
+        int r = 0;
+        var res = new int[ordinals.length];
+
+        for (int ordinal : ordinals) {
+            if (bitmap.contains(ordinal) == keep) {
+                res[r++] = ordinal;
+            }
+        }
+
+        return Arrays.copyOf(res, r);
     }
 
     @Override
@@ -204,12 +907,14 @@ public final class Population extends AbstractSet<String> {
         if (!(o instanceof Population p))
             return false;
 
-        return created.equals(p.created) && Arrays.equals(patientIds, p.patientIds);
+        return created.equals(p.created) && (patientOrdinals != null
+                ? Arrays.equals(patientOrdinals, p.patientOrdinals)
+                : bitmap.equals(p.bitmap));
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(created, Arrays.hashCode(patientIds));
+        return Objects.hash(created, patientOrdinals != null ? Arrays.hashCode(patientOrdinals) : bitmap.hashCode());
     }
 
     @Override
@@ -217,46 +922,236 @@ public final class Population extends AbstractSet<String> {
         return "Population[size=" + size() + "]";
     }
 
+    /**
+     * Serializes this population into a byte buffer using format version 1.
+     * <p>
+     * The format consists of the version byte, the created instant as epoch seconds in 8 bytes and the number of
+     * patient ids as varint. The patient ids follow in lexicographic order and are front-coded: each one is stored as
+     * the length of the prefix it shares with the previous patient id, the length of the remaining suffix, both as
+     * varint, and the ASCII bytes of the suffix.
+     * <p>
+     * Ordinals are not serialized, because they are only valid inside the current process.
+     *
+     * @return a heap byte buffer ready to be read
+     */
     public ByteBuffer toByteBuffer() {
-        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(serializedSize());
-        byteBuffer.put((byte) 0); //version byte
+        var patientIds = sortedPatientIds();
+        var prefixLengths = new int[patientIds.length];
+        int size = 9 + varIntSize(patientIds.length);
+        for (int i = 0; i < patientIds.length; i++) {
+            int prefixLength = i == 0 ? 0 : commonPrefixLength(patientIds[i - 1], patientIds[i]);
+            int suffixLength = patientIds[i].length() - prefixLength;
+            prefixLengths[i] = prefixLength;
+            size += varIntSize(prefixLength) + varIntSize(suffixLength) + suffixLength;
+        }
 
+        var byteBuffer = ByteBuffer.allocate(size);
+        byteBuffer.put((byte) 1); //version byte
         byteBuffer.putLong(created.getEpochSecond());
-        byteBuffer.putInt(patientIds.length);
+        putVarInt(byteBuffer, patientIds.length);
 
-        for (String id : patientIds) {
-            byte[] bytes = id.getBytes(US_ASCII);
-            byteBuffer.put((byte) bytes.length);
-            byteBuffer.put(bytes);
+        for (int i = 0; i < patientIds.length; i++) {
+            var patientId = patientIds[i];
+            putVarInt(byteBuffer, prefixLengths[i]);
+            putVarInt(byteBuffer, patientId.length() - prefixLengths[i]);
+            for (int j = prefixLengths[i]; j < patientId.length(); j++) {
+                char c = patientId.charAt(j);
+                byteBuffer.put(c < 0x80 ? (byte) c : (byte) '?');
+            }
         }
 
         return byteBuffer.flip();
     }
 
-    private int serializedSize() {
-        return Arrays.stream(patientIds).mapToInt(id -> id.getBytes(US_ASCII).length + 1).sum() + 13;
+    private String[] sortedPatientIds() {
+        var patientIds = new String[size()];
+        var ordinals = ordinalIterator();
+        for (int i = 0; i < patientIds.length; i++) {
+            patientIds[i] = DICTIONARY.patientId(ordinals.nextInt());
+        }
+        Arrays.sort(patientIds);
+        return patientIds;
+    }
+
+    private static int commonPrefixLength(String s1, String s2) {
+        int n = Math.min(s1.length(), s2.length());
+        int i = 0;
+        while (i < n && s1.charAt(i) == s2.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int varIntSize(int value) {
+        return (38 - Integer.numberOfLeadingZeros(value | 1)) / 7;
+    }
+
+    private static void putVarInt(ByteBuffer byteBuffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            byteBuffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        byteBuffer.put((byte) value);
+    }
+
+    private static int getVarInt(ByteBuffer byteBuffer) throws SerializerException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = byteBuffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new SerializerException("Can't deserialize because of a malformed varint.");
     }
 
+    /**
+     * Deserializes a population from {@code byteBuffer} which can be in format version 0 or 1.
+     *
+     * @param byteBuffer the byte buffer to read from
+     * @return the deserialized population
+     * @throws SerializerException if the version isn't supported or the byte buffer is malformed
+     */
     public static Population fromByteBuffer(ByteBuffer byteBuffer) throws SerializerException {
         if (!byteBuffer.hasRemaining()) {
             throw new SerializerException("Can't deserialize an empty byte buffer.");
         }
 
         byte versionByte = byteBuffer.get();
-        if (versionByte != 0) {
-            throw new SerializerException("Can't deserialize because version %d isn't supported.".formatted(versionByte));
+        try {
+            return switch (versionByte) {
+                case 0 -> fromByteBufferV0(byteBuffer);
+                case 1 -> fromByteBufferV1(byteBuffer);
+                default -> throw new SerializerException("Can't deserialize because version %d isn't supported."
+                        .formatted(versionByte));
+            };
+        } catch (BufferUnderflowException e) {
+            throw new SerializerException("Can't deserialize because the byte buffer is truncated.");
         }
+    }
 
+    private static Population fromByteBufferV0(ByteBuffer byteBuffer) {
         var created = Instant.ofEpochSecond(byteBuffer.getLong());
 
-        var patientIds = new String[byteBuffer.getInt()];
+        var patientOrdinals = new int[byteBuffer.getInt()];
+        var idBytes = new byte[255];
+        int i = 0;
+        while (i < patientOrdinals.length) {
+            int length = byteBuffer.get() & 0xFF;
+            byteBuffer.get(idBytes, 0, length);
+            patientOrdinals[i++] = DICTIONARY.ordinal(idBytes, length);
+        }
+        return of(sortedDistinct(patientOrdinals, i), created);
+    }
+
+    private static Population fromByteBufferV1(ByteBuffer byteBuffer) throws SerializerException {
+        var created = Instant.ofEpochSecond(byteBuffer.getLong());
+
+        int size = getVarInt(byteBuffer);
+        if (size < 0 || size > byteBuffer.remaining() / 2) {
+            throw new SerializerException("Can't deserialize because of an invalid size.");
+        }
+        var patientOrdinals = new int[size];
+        var idBytes = new byte[64];
+        int length = 0;
         int i = 0;
-        while (i < patientIds.length) {
-            byte[] idBytes = new byte[byteBuffer.get()];
-            byteBuffer.get(idBytes);
-            patientIds[i++] = new String(idBytes, US_ASCII).intern();
+        while (i < patientOrdinals.length) {
+            int prefixLength = getVarInt(byteBuffer);
+            int suffixLength = getVarInt(byteBuffer);
+            if (prefixLength < 0 || suffixLength < 0 || prefixLength > length ||
+                    prefixLength + suffixLength > idBytes.length) {
+                throw new SerializerException("Can't deserialize because of an invalid patient id length.");
+            }
+            byteBuffer.get(idBytes, prefixLength, suffixLength);
+            length = prefixLength + suffixLength;
+            patientOrdinals[i++] = DICTIONARY.ordinal(idBytes, length);
+        }
+        return of(sortedDistinct(patientOrdinals, i), created);
+    }
+
+    /**
+     * Serializes this population into a direct byte buffer outside of the Java heap.
+     * <p>
+     * The format consists of the created instant as epoch seconds in 8 bytes and nanos in 4 bytes, the number of
+     * patients as varint and the differences between consecutive patient ordinals as varint. Because ordinals are only
+     * valid inside the current process, the buffer must not be persisted. In exchange, it is smaller than the format
+     * of {@link #toByteBuffer()} and deserialized without looking up patient ids.
+     * <p>
+     * The ordinals stay valid only as long as the buffer is passed to every {@link #reclaimPatientIds(Stream)
+     * reclaimPatientIds} call, because reclaimed ordinals are reused for other patient ids.
+     *
+     * @return a direct byte buffer ready to be read
+     */
+    public ByteBuffer toOffHeapBuffer() {
+        int size = 12 + varIntSize(size());
+        var ordinals = ordinalIterator();
+        for (int previous = 0; ordinals.hasNext(); ) {
+            int ordinal = ordinals.nextInt();
+            size += varIntSize(ordinal - previous);
+            previous = ordinal;
+        }
+
+        var byteBuffer = ByteBuffer.allocateDirect(size);
+        byteBuffer.putLong(created.getEpochSecond());
+        byteBuffer.putInt(created.getNano());
+        putVarInt(byteBuffer, size());
+        ordinals = ordinalIterator();
+        for (int previous = 0; ordinals.hasNext(); ) {
+            int ordinal = ordinals.nextInt();
+            putVarInt(byteBuffer, ordinal - previous);
+            previous = ordinal;
+        }
+
+        return byteBuffer.flip();
+    }
+
+    /**
+     * Deserializes a population from {@code byteBuffer} created by {@link #toOffHeapBuffer()} in the current process.
+     * <p>
+     * The position of {@code byteBuffer} isn't changed, so that it can be read concurrently.
+     *
+     * @param byteBuffer the byte buffer to read from
+     * @return the deserialized population
+     * @throws SerializerException if the byte buffer is malformed
+     */
+    public static Population fromOffHeapBuffer(ByteBuffer byteBuffer) throws SerializerException {
+        var buffer = byteBuffer.duplicate();
+        try {
+            var created = Instant.ofEpochSecond(buffer.getLong(), buffer.getInt());
+            int size = getVarInt(buffer);
+            if (size < 0 || size > buffer.remaining()) {
+                throw new SerializerException("Can't deserialize because of an invalid size.");
+            }
+            var patientOrdinals = new int[size];
+            int ordinal = 0;
+            for (int i = 0; i < size; i++) {
+                ordinal += getVarInt(buffer);
+                patientOrdinals[i] = ordinal;
+            }
+            return of(patientOrdinals, created);
+        } catch (BufferUnderflowException e) {
+            throw new SerializerException("Can't deserialize because the byte buffer is truncated.");
+        }
+    }
+
+    /**
+     * Passes all ordinals of {@code byteBuffer} created by {@link #toOffHeapBuffer()} to {@code consumer} without
+     * creating a population.
+     * <p>
+     * Malformed buffers are skipped after their readable ordinals, because they can't be deserialized into a
+     * population anyway.
+     */
+    private static void forEachOffHeapOrdinal(ByteBuffer byteBuffer, IntConsumer consumer) {
+        var buffer = byteBuffer.duplicate().position(byteBuffer.position() + 12);
+        try {
+            int size = getVarInt(buffer);
+            for (int i = 0, ordinal = 0; i < size; i++) {
+                ordinal += getVarInt(buffer);
+                consumer.accept(ordinal);
+            }
+        } catch (SerializerException | BufferUnderflowException | IllegalArgumentException ignored) {
         }
-        return new Population(patientIds, created);
     }
 
     private static void checkPatientId(String patientId1) {
@@ -265,22 +1160,106 @@ public final class Population extends AbstractSet<String> {
         }
     }
 
+    private PrimitiveIterator.OfInt ordinalIterator() {
+        return patientOrdinals != null ? Arrays.stream(patientOrdinals).iterator() : bitmap.iterator();
+    }
+
+    /**
+     * A builder which collects patient ids incrementally, for example page by page, and creates the population in one
+     * pass at the end.
+     * <p>
+     * Patient ids are stored as ordinals in an array. Repeated patient ids are skipped on add. Before the array grows,
+     * it is sorted and deduplicated in place, so that duplicates don't need additional memory.
+     * <p>
+     * Builders aren't thread-safe and can't be used after {@link #build() build}.
+     */
+    public static final class Builder {
+
+        private int[] ordinals = new int[16];
+        private int size;
+
+        private Builder() {
+        }
+
+        /**
+         * Adds {@code patientId}.
+         *
+         * @param patientId the patient id to add
+         * @return this builder
+         * @throws IllegalArgumentException if {@code patientId} is longer than 64 chars
+         * @throws NullPointerException     if {@code patientId} is {@code null}
+         * @throws IllegalStateException    if {@link #build() build} was already called
+         */
+        public Builder add(String patientId) {
+            checkPatientId(patientId);
+            if (ordinals == null) {
+                throw new IllegalStateException("The population was already built.");
+            }
+            int ordinal = DICTIONARY.ordinal(patientId);
+            if (size > 0 && ordinals[size - 1] == ordinal) {
+                return this;
+            }
+            if (size == ordinals.length) {
+                compactOrGrow();
+            }
+            ordinals[size++] = ordinal;
+            return this;
+        }
+
+        /**
+         * Adds all {@code patientIds}.
+         *
+         * @param patientIds the patient ids to add
+         * @return this builder
+         * @throws IllegalArgumentException if one of the patient ids is longer than 64 chars
+         * @throws NullPointerException     if one of the patient ids is {@code null}
+         * @throws IllegalStateException    if {@link #build() build} was already called
+         */
+        public Builder addAll(Collection<String> patientIds) {
+            for (String patientId : patientIds) {
+                add(patientId);
+            }
+            return this;
+        }
+
+        /**
+         * Removes the duplicates and grows the array only if it would be more than half full afterwards.
+         */
+        private void compactOrGrow() {
+            size = sortDistinct(ordinals, size);
+            if (size > ordinals.length / 2) {
+                ordinals = Arrays.copyOf(ordinals, ordinals.length * 2);
+            }
+        }
+
+        /**
+         * Builds the population of all added patient ids with a created instant of {@link Instant#EPOCH epoch}.
+         *
+         * @return the population
+         * @throws IllegalStateException if {@code build} was already called
+         */
+        public Population build() {
+            if (ordinals == null) {
+                throw new IllegalStateException("The population was already built.");
+            }
+            var sorted = sortedDistinct(ordinals, size);
+            ordinals = null;
+            return sorted.length == 0 ? EMPTY : of(sorted, Instant.EPOCH);
+        }
+    }
+
     private class PatientIdIterator implements Iterator<String> {
 
-        private int cursor;
+        private final PrimitiveIterator.OfInt ordinals = ordinalIterator();
 
         @Override
         public boolean hasNext() {
-            return cursor != patientIds.length;
+            return ordinals.hasNext();
         }
 
         @Override
         public String next() {
-            try {
-                return patientIds[cursor++];
-            } catch (IndexOutOfBoundsException e) {
-                throw new NoSuchElementException();
-            }
+            return DICTIONARY.patientId(ordinals.nextInt());
         }
     }
 }
@@ -1,19 +1,184 @@
 package de.medizininformatikinitiative.flare.model.fhir;
 
-import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
-@JsonIgnoreProperties(ignoreUnknown = true)
-public record Bundle(List<Entry> entry, List<Link> link) {
+import static java.util.Objects.requireNonNull;
+
+/**
+ * The parts of a FHIR search result Bundle flare needs: the patient ids of the resources, the URL of the next page and
+ * the total number of matching resources.
+ * <p>
+ * Bundles are decoded by a streaming {@link Deserializer deserializer} which extracts the patient ids directly from
+ * the JSON tokens, without creating objects for entries, resources or references.
+ *
+ * @param patientIds the patient ids of the resources in the order of the entries, possibly with duplicates
+ * @param nextUrl    the URL of the link with relation {@code next} or {@code null} if there is no next page
+ * @param total      the total number of matching resources or {@code null} if the server didn't report it
+ */
+@JsonDeserialize(using = Bundle.Deserializer.class)
+public record Bundle(List<String> patientIds, String nextUrl, Integer total) {
 
     public Bundle {
-        entry = entry == null ? List.of() : List.copyOf(entry);
-        link = link == null ? List.of() : List.copyOf(link);
+        requireNonNull(patientIds);
+    }
+
+    public Optional<String> nextPageUrl() {
+        return Optional.ofNullable(nextUrl);
     }
 
-    public Optional<Link> linkWithRel(String rel) {
-        return link.stream().filter(l -> l.relation().equals(rel)).findFirst();
+    public Optional<Integer> knownTotal() {
+        return Optional.ofNullable(total);
+    }
+
+    /**
+     * Decodes a Bundle by walking the JSON token stream.
+     * <p>
+     * The patient id of a resource is taken from the {@code patient} reference, the {@code subject} reference or the
+     * {@code id} of the resource, in that order. Only the part of a reference after the first slash is used. All
+     * other properties are skipped.
+     */
+    public static class Deserializer extends StdDeserializer<Bundle> {
+
+        public Deserializer() {
+            super(Bundle.class);
+        }
+
+        @Override
+        public Bundle deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            if (!parser.isExpectedStartObjectToken()) {
+                return (Bundle) context.handleUnexpectedToken(Bundle.class, parser);
+            }
+
+            var patientIds = new ArrayList<String>();
+            String nextUrl = null;
+            Integer total = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var name = parser.currentName();
+                parser.nextToken();
+                if ("total".equals(name) && parser.currentToken() == JsonToken.VALUE_NUMBER_INT) {
+                    total = parser.getIntValue();
+                } else if ("link".equals(name) && parser.isExpectedStartArrayToken()) {
+                    nextUrl = readNextUrl(parser);
+                } else if ("entry".equals(name) && parser.isExpectedStartArrayToken()) {
+                    readPatientIds(parser, patientIds);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return new Bundle(patientIds, nextUrl, total);
+        }
+
+        private static String readNextUrl(JsonParser parser) throws IOException {
+            String nextUrl = null;
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                if (!parser.isExpectedStartObjectToken()) {
+                    parser.skipChildren();
+                    continue;
+                }
+                String relation = null, url = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    var name = parser.currentName();
+                    parser.nextToken();
+                    switch (name) {
+                        case "relation" -> relation = text(parser);
+                        case "url" -> url = text(parser);
+                        default -> parser.skipChildren();
+                    }
+                }
+                if (nextUrl == null && "next".equals(relation)) {
+                    nextUrl = url;
+                }
+            }
+            return nextUrl;
+        }
+
+        private static void readPatientIds(JsonParser parser, List<String> patientIds) throws IOException {
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                if (!parser.isExpectedStartObjectToken()) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    var name = parser.currentName();
+                    parser.nextToken();
+                    if ("resource".equals(name) && parser.isExpectedStartObjectToken()) {
+                        var patientId = readPatientId(parser);
+                        if (patientId != null) {
+                            patientIds.add(patientId);
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+        }
+
+        private static String readPatientId(JsonParser parser) throws IOException {
+            String id = null, patientId = null, subjectId = null;
+            boolean hasPatient = false, hasSubject = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var name = parser.currentName();
+                var token = parser.nextToken();
+                switch (name) {
+                    case "id" -> id = text(parser);
+                    case "patient" -> {
+                        hasPatient = token == JsonToken.START_OBJECT;
+                        patientId = readReferenceId(parser);
+                    }
+                    case "subject" -> {
+                        hasSubject = token == JsonToken.START_OBJECT;
+                        subjectId = readReferenceId(parser);
+                    }
+                    default -> parser.skipChildren();
+                }
+            }
+            return hasPatient ? patientId : hasSubject ? subjectId : id;
+        }
+
+        /**
+         * Reads the part after the first slash of the {@code reference} property of a Reference, creating only one
+         * string.
+         */
+        private static String readReferenceId(JsonParser parser) throws IOException {
+            if (!parser.isExpectedStartObjectToken()) {
+                parser.skipChildren();
+                return null;
+            }
+            String referenceId = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var name = parser.currentName();
+                if (parser.nextToken() == JsonToken.VALUE_STRING && "reference".equals(name)) {
+                    var chars = parser.getTextCharacters();
+                    int offset = parser.getTextOffset();
+                    int length = parser.getTextLength();
+                    int start = 0;
+                    while (start < length && chars[offset + start] != '/') {
+                        start++;
+                    }
+                    start = start < length ? start + 1 : 0;
+                    referenceId = new String(chars, offset + start, length - start);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return referenceId;
+        }
+
+        private static String text(JsonParser parser) throws IOException {
+            if (parser.currentToken() == JsonToken.VALUE_STRING) {
+                return parser.getText();
+            }
+            parser.skipChildren();
+            return null;
+        }
     }
 }
@@ -1,8 +0,0 @@
-package de.medizininformatikinitiative.flare.model.fhir;
-
-import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
-
-@JsonIgnoreProperties(ignoreUnknown = true)
-public record Entry(Resource resource) {
-
-}
@@ -1,5 +1,8 @@
 package de.medizininformatikinitiative.flare.model.fhir;
 
+import java.util.List;
+import java.util.Optional;
+
 import static java.util.Objects.requireNonNull;
 
 public record Query(String type, QueryParams params) {
@@ -17,6 +20,33 @@ public record Query(String type, QueryParams params) {
         return new Query(type, QueryParams.EMPTY);
     }
 
+    /**
+     * Returns a Patient query which selects the patients that are referenced through {@code referenceParam} by the
+     * resources this query selects, using reverse chaining.
+     * <p>
+     * Only queries with exactly one plain param can be rewritten, because every {@code _has} param is matched against
+     * all resources of a patient independently. Two {@code _has} params could match two different resources.
+     *
+     * @param referenceParam the search param of the resources referencing the patient, like {@code subject}
+     * @return the Patient query or {@link Optional#empty() empty} if this query can't be rewritten
+     */
+    public Optional<Query> toReverseChained(String referenceParam) {
+        return params.toReverseChained(type, referenceParam).map(params -> new Query("Patient", params));
+    }
+
+    /**
+     * Returns the queries of the same type with a proper subset of the params of this query.
+     * <p>
+     * Because resources have to match all params of a query, each of the returned queries selects a superset of the
+     * resources this query selects. So if one of them selects no resources, this query doesn't select any either.
+     *
+     * @return the broader queries or an empty list if this query has too many params
+     * @see QueryParams#properSubsets()
+     */
+    public List<Query> broaderQueries() {
+        return params.properSubsets().stream().map(params -> new Query(type, params)).toList();
+    }
+
     @Override
     public String toString() {
         return params.toString().isEmpty() ? type : type + "?" + params;
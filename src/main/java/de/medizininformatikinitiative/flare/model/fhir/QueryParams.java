@@ -5,8 +5,10 @@ import de.medizininformatikinitiative.flare.model.sq.Quantity;
 import de.medizininformatikinitiative.flare.model.sq.TermCode;
 
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 import static java.util.Objects.requireNonNull;
@@ -21,6 +23,8 @@ public record QueryParams(List<Param> params) {
 
     public static QueryParams EMPTY = new QueryParams(List.of());
 
+    private static final int MAX_SUBSET_PARAMS = 4;
+
     public QueryParams {
         params = List.copyOf(params);
     }
@@ -89,6 +93,55 @@ public record QueryParams(List<Param> params) {
         return new QueryParams(params.stream().map(param -> new Param(name + "." + param.name, param.value)).toList());
     }
 
+    /**
+     * Converts a single param into a {@code _has} param of a Patient search selecting the patients referenced through
+     * {@code referenceParam} by resources of {@code type} matching the param.
+     * <p>
+     * Only a single param without modifier and chaining can be converted.
+     *
+     * @param type           the type of the resources referencing the patients
+     * @param referenceParam the search param of the resources referencing the patients
+     * @return the {@code QueryParams} with the {@code _has} param or {@link Optional#empty() empty} if the params can't
+     * be converted
+     */
+    public Optional<QueryParams> toReverseChained(String type, String referenceParam) {
+        if (params.size() != 1) {
+            return Optional.empty();
+        }
+        var param = params.get(0);
+        if (param.name.startsWith("_") || param.name.contains(":") || param.name.contains(".")) {
+            return Optional.empty();
+        }
+        return Optional.of(QueryParams.of("_has:%s:%s:%s".formatted(type, referenceParam, param.name), param.value));
+    }
+
+    /**
+     * Returns all params consisting of a proper subset of these params in their original order, starting with the
+     * empty params.
+     * <p>
+     * Returns an empty list for more than {@value #MAX_SUBSET_PARAMS} params, because the number of subsets grows
+     * exponentially.
+     *
+     * @return a list of all proper subsets of these params
+     */
+    public List<QueryParams> properSubsets() {
+        int n = params.size();
+        if (n > MAX_SUBSET_PARAMS) {
+            return List.of();
+        }
+        var subsets = new ArrayList<QueryParams>((1 << n) - 1);
+        for (int mask = 0; mask < (1 << n) - 1; mask++) {
+            var subset = new ArrayList<Param>(Integer.bitCount(mask));
+            for (int i = 0; i < n; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    subset.add(params.get(i));
+                }
+            }
+            subsets.add(new QueryParams(subset));
+        }
+        return subsets;
+    }
+
     @Override
     public String toString() {
         return params.stream().map(Param::toString).collect(Collectors.joining("&"));
@@ -64,19 +64,35 @@ public record CriterionGroup<T>(T firstCriterion, List<T> moreCriteria) {
     }
 
     /**
-     * Executes all {@code criteria} of this group using the {@code executor} and performs a set
-     * {@link Population#intersection(Population) intersection} on the results.
+     * Executes all {@code criteria} of this group using the {@code executor} and intersects the results as they
+     * arrive.
+     * <p>
+     * As soon as the running intersection is empty, the execution of the remaining criteria is cancelled. That is
+     * also the case if no single result is empty but the results have no patient in common.
      */
     public Mono<Population> executeAndIntersection(Function<T, Publisher<? extends Population>> executor) {
-        return parallelCriteriaFlux().flatMap(executor).reduce(Population::intersection);
+        return executeAll(executor).scan(Population::intersection).takeUntil(Population::isEmpty)
+                .reduce((previous, current) -> current);
     }
 
     /**
      * Executes all {@code criteria} of this group using the {@code executor} and performs a set
-     * {@link Population#union(Population) union} on the results.
+     * {@link Population#unionAll(List) union} on all results at once.
      */
     public Mono<Population> executeAndUnion(Function<T, Publisher<? extends Population>> executor) {
-        return parallelCriteriaFlux().flatMap(executor).reduce(Population::union);
+        return executeAndCollect(executor).map(Population::unionAll);
+    }
+
+    /**
+     * Executes all {@code criteria} of this group using the {@code executor} and collects the results into a list
+     * which is only emitted if it is not empty.
+     */
+    public Mono<List<Population>> executeAndCollect(Function<T, Publisher<? extends Population>> executor) {
+        return executeAll(executor).collectList().filter(results -> !results.isEmpty());
+    }
+
+    private Flux<Population> executeAll(Function<T, Publisher<? extends Population>> executor) {
+        return parallelCriteriaFlux().flatMap(executor).sequential();
     }
 
     /**
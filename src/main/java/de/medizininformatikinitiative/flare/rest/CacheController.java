@@ -1,7 +1,10 @@
 package de.medizininformatikinitiative.flare.rest;
 
+import de.medizininformatikinitiative.flare.model.Population;
 import de.medizininformatikinitiative.flare.service.DiskCachingFhirQueryService;
+import de.medizininformatikinitiative.flare.service.GroupCache;
 import de.medizininformatikinitiative.flare.service.MemCachingFhirQueryService;
+import de.medizininformatikinitiative.flare.service.OffHeapCachingFhirQueryService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.Bean;
@@ -22,11 +25,16 @@ public class CacheController {
     private static final Logger logger = LoggerFactory.getLogger(CacheController.class);
 
     private final MemCachingFhirQueryService memCache;
+    private final OffHeapCachingFhirQueryService offHeapCache;
     private final DiskCachingFhirQueryService diskCache;
+    private final GroupCache groupCache;
 
-    public CacheController(MemCachingFhirQueryService memCache, DiskCachingFhirQueryService diskCache) {
+    public CacheController(MemCachingFhirQueryService memCache, OffHeapCachingFhirQueryService offHeapCache,
+                           DiskCachingFhirQueryService diskCache, GroupCache groupCache) {
         this.memCache = requireNonNull(memCache);
+        this.offHeapCache = requireNonNull(offHeapCache);
         this.diskCache = requireNonNull(diskCache);
+        this.groupCache = requireNonNull(groupCache);
     }
 
     @Bean
@@ -39,11 +47,18 @@ public class CacheController {
         return ok().bodyValue(new CacheStats(Runtime.getRuntime().maxMemory() >> 20,
                 Runtime.getRuntime().totalMemory() >> 20,
                 Runtime.getRuntime().freeMemory() >> 20,
-                memCache.stats(), diskCache.stats()));
+                memCache.stats(), offHeapCache.stats(), diskCache.stats(), groupCache.stats(),
+                new PatientIdStats(Population.patientIdCount(), Population.patientIdMemSize() >> 20)));
     }
 
     public record CacheStats(long maxMemoryMib, long totalMemoryMib, long freeMemoryMib,
                              MemCachingFhirQueryService.CacheStats memory,
-                             DiskCachingFhirQueryService.CacheStats disk) {
+                             OffHeapCachingFhirQueryService.CacheStats offHeap,
+                             DiskCachingFhirQueryService.CacheStats disk,
+                             GroupCache.CacheStats group,
+                             PatientIdStats patientIds) {
+    }
+
+    public record PatientIdStats(long count, long usedMemoryMiB) {
     }
 }
@@ -0,0 +1,38 @@
+package de.medizininformatikinitiative.flare.rest;
+
+import de.medizininformatikinitiative.flare.service.ConnectionPoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Mono;
+
+import static java.util.Objects.requireNonNull;
+import static org.springframework.web.reactive.function.server.RequestPredicates.GET;
+import static org.springframework.web.reactive.function.server.RouterFunctions.route;
+import static org.springframework.web.reactive.function.server.ServerResponse.ok;
+
+@Component
+public class ConnectionPoolController {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPoolController.class);
+
+    private final ConnectionPoolStats connectionPoolStats;
+
+    public ConnectionPoolController(ConnectionPoolStats connectionPoolStats) {
+        this.connectionPoolStats = requireNonNull(connectionPoolStats);
+    }
+
+    @Bean
+    public RouterFunction<ServerResponse> connectionPoolRouter() {
+        return route(GET("connection-pool/stats"), this::handle);
+    }
+
+    public Mono<ServerResponse> handle(ServerRequest request) {
+        logger.debug("Return connection pool infos");
+        return ok().bodyValue(connectionPoolStats.stats());
+    }
+}
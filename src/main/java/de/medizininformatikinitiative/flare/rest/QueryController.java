@@ -4,6 +4,7 @@ import de.medizininformatikinitiative.Monos;
 import de.medizininformatikinitiative.flare.Util;
 import de.medizininformatikinitiative.flare.model.mapping.MappingException;
 import de.medizininformatikinitiative.flare.model.sq.StructuredQuery;
+import de.medizininformatikinitiative.flare.service.AdmissionRejectedException;
 import de.medizininformatikinitiative.flare.service.StructuredQueryService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,8 +18,6 @@ import org.springframework.web.reactive.function.server.ServerRequest;
 import org.springframework.web.reactive.function.server.ServerResponse;
 import reactor.core.publisher.Mono;
 
-import java.util.Set;
-
 import static java.util.Objects.requireNonNull;
 import static org.springframework.web.reactive.function.server.RequestPredicates.POST;
 import static org.springframework.web.reactive.function.server.RequestPredicates.accept;
@@ -57,7 +56,7 @@ public class QueryController {
         var queryId = queryIdGenerator.generateRandom();
         logger.debug("Execute feasibility query {}", queryId);
         return request.bodyToMono(StructuredQuery.class)
-                .flatMap(query -> queryService.execute(queryId, query)).map(Set::size)
+                .flatMap(query -> queryService.executeCount(queryId, query))
                 .flatMap(count -> {
                     logger.debug("Finished feasibility query {} returning cohort size {} in {} seconds.", queryId, count,
                             "%.1f".formatted(Util.durationSecondsSince(startNanoTime)));
@@ -70,6 +69,10 @@ public class QueryController {
                 .onErrorResume(WebClientRequestException.class, e -> {
                     logger.error("Service not available in feasibility query {} because of downstream web client errors: {}", queryId, e.getMessage());
                     return status(503).bodyValue(new Error(e.getMessage()));
+                })
+                .onErrorResume(AdmissionRejectedException.class, e -> {
+                    logger.warn("Rejected feasibility query {} because too many FHIR queries are waiting.", queryId);
+                    return status(429).bodyValue(new Error(e.getMessage()));
                 });
     }
 
@@ -91,6 +94,10 @@ public class QueryController {
                 .onErrorResume(WebClientRequestException.class, e -> {
                     logger.error("Service not available in cohort query {} because of downstream web client errors: {}", queryId, e.getMessage());
                     return status(503).bodyValue(new Error(e.getMessage()));
+                })
+                .onErrorResume(AdmissionRejectedException.class, e -> {
+                    logger.warn("Rejected cohort query {} because too many FHIR queries are waiting.", queryId);
+                    return status(429).bodyValue(new Error(e.getMessage()));
                 });
     }
 
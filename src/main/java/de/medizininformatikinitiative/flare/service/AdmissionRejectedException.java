@@ -0,0 +1,8 @@
+package de.medizininformatikinitiative.flare.service;
+
+public class AdmissionRejectedException extends Exception {
+
+    public AdmissionRejectedException(String message) {
+        super(message);
+    }
+}
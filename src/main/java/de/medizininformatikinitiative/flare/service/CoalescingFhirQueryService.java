@@ -0,0 +1,89 @@
+package de.medizininformatikinitiative.flare.service;
+
+import de.medizininformatikinitiative.flare.model.Population;
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import org.reactivestreams.Subscriber;
+import reactor.core.publisher.Mono;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Lets all concurrent executions of the same query share one execution of the underlying service.
+ * <p>
+ * The first execution of a query starts the underlying execution. Executions of the same query arriving before it
+ * terminates subscribe to it instead of starting their own, independent of {@code ignoreCache}, because the shared
+ * execution started after them. The underlying execution is cancelled only if all executions sharing it are
+ * cancelled.
+ * <p>
+ * If an execution with {@code ignoreCache} unset joins a shared cache refresh, the refresh is
+ * {@link FhirQueryService#promote(UUID, Query) promoted} to the structured query of the joining execution, so that it
+ * isn't scheduled behind all structured queries anymore.
+ */
+public class CoalescingFhirQueryService implements FhirQueryService {
+
+    private final FhirQueryService fhirQueryService;
+    private final ConcurrentHashMap<Query, InFlight> inFlight = new ConcurrentHashMap<>();
+
+    public CoalescingFhirQueryService(FhirQueryService fhirQueryService) {
+        this.fhirQueryService = requireNonNull(fhirQueryService);
+    }
+
+    @Override
+    public Mono<Population> execute(UUID id, Query query, boolean ignoreCache) {
+        return Mono.defer(() -> {
+            var flight = inFlight.computeIfAbsent(query, q -> new InFlight(id, q, ignoreCache));
+            if (!ignoreCache) {
+                flight.promote(id);
+            }
+            return flight.population;
+        });
+    }
+
+    private final class InFlight {
+
+        private final Query query;
+        private final Mono<Population> population;
+
+        /**
+         * Whether this is a cache refresh not promoted yet. Guarded by the lock of this execution.
+         */
+        private boolean refresh;
+        private UUID id;
+
+        private InFlight(UUID id, Query query, boolean ignoreCache) {
+            this.query = query;
+            this.id = id;
+            this.refresh = ignoreCache;
+            population = Mono.<Population>from(this::subscribeUnderlying)
+                    .doFinally(signal -> inFlight.remove(query, this))
+                    .flux()
+                    .publish()
+                    .refCount()
+                    .singleOrEmpty();
+        }
+
+        /**
+         * Subscribes to the underlying execution while holding the lock, so that a concurrent promotion either
+         * happens before and changes the execution or happens after and finds it waiting.
+         */
+        private synchronized void subscribeUnderlying(Subscriber<? super Population> subscriber) {
+            fhirQueryService.execute(id, query, refresh).subscribe(subscriber);
+        }
+
+        /**
+         * Promotes this execution to the structured query with {@code id} if it is a cache refresh.
+         * <p>
+         * If the underlying execution didn't start yet, it starts as execution of that structured query.
+         */
+        private synchronized void promote(UUID id) {
+            if (refresh) {
+                refresh = false;
+                this.id = id;
+                fhirQueryService.promote(id, query);
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package de.medizininformatikinitiative.flare.service;
+
+import reactor.netty.resources.ConnectionPoolMetrics;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.net.SocketAddress;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects the metrics of the connection pools of a {@link ConnectionProvider connection provider} without depending
+ * on a meter registry.
+ * <p>
+ * The connection provider registers one pool per remote address. For HTTP/2 pools, the acquired and pending counts
+ * refer to streams instead of connections.
+ */
+public class ConnectionPoolStats implements ConnectionProvider.MeterRegistrar {
+
+    private final ConcurrentHashMap<String, Pool> pools = new ConcurrentHashMap<>();
+
+    @Override
+    public void registerMetrics(String poolName, String id, SocketAddress remoteAddress,
+                                ConnectionPoolMetrics metrics) {
+        pools.put(id, new Pool(poolName, remoteAddress.toString(), metrics));
+    }
+
+    @Override
+    public void deRegisterMetrics(String poolName, String id, SocketAddress remoteAddress) {
+        pools.remove(id);
+    }
+
+    /**
+     * Returns the current stats of all registered pools ordered by name and remote address.
+     *
+     * @return the current stats of all registered pools
+     */
+    public List<PoolStats> stats() {
+        return pools.values().stream()
+                .map(Pool::stats)
+                .sorted(Comparator.comparing(PoolStats::name).thenComparing(PoolStats::remoteAddress))
+                .toList();
+    }
+
+    public record PoolStats(String name, String remoteAddress, int acquiredSize, int allocatedSize, int idleSize,
+                            int pendingAcquireSize, int maxAllocatedSize, int maxPendingAcquireSize) {
+    }
+
+    private record Pool(String name, String remoteAddress, ConnectionPoolMetrics metrics) {
+
+        private PoolStats stats() {
+            return new PoolStats(name, remoteAddress, metrics.acquiredSize(), metrics.allocatedSize(),
+                    metrics.idleSize(), metrics.pendingAcquireSize(), metrics.maxAllocatedSize(),
+                    metrics.maxPendingAcquireSize());
+        }
+    }
+}
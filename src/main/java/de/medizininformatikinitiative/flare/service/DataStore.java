@@ -8,68 +8,224 @@ import de.medizininformatikinitiative.flare.model.fhir.QueryParams;
 import jakarta.annotation.PostConstruct;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBufferLimitException;
 import org.springframework.http.HttpStatusCode;
-import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.util.retry.Retry;
+import reactor.util.retry.RetryBackoffSpec;
 
 import java.time.Clock;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static de.medizininformatikinitiative.flare.model.fhir.QueryParams.stringValue;
 import static org.springframework.http.MediaType.APPLICATION_FORM_URLENCODED;
 
-@Component
 public class DataStore implements FhirQueryService {
 
     private static final Logger logger = LoggerFactory.getLogger(DataStore.class);
 
     private final WebClient client;
     private final Clock clock;
-    private final int pageCount;
+    private final Config config;
+    private final PageCounts pageCounts;
 
-    public DataStore(@Qualifier("dataStoreClient") WebClient client, @Qualifier("systemDefaultZone") Clock clock,
-                     @Value("${flare.fhir.pageCount}") int pageCount) {
+    /**
+     * Detects whether the FHIR server supports reverse chaining. Subscribed at start if reverse chaining is enabled and
+     * cached afterwards.
+     */
+    private final Mono<Boolean> reverseChainingSupport;
+
+    public DataStore(WebClient client, Clock clock, Config config) {
         this.client = Objects.requireNonNull(client);
-        this.clock = clock;
-        this.pageCount = pageCount;
+        this.clock = Objects.requireNonNull(clock);
+        this.config = Objects.requireNonNull(config);
+        this.pageCounts = new PageCounts(config.pageCount, config.pageCountMin, config.pageCountMax,
+                config.pageLatencyTarget);
+        this.reverseChainingSupport = config.reverseChaining ? detectReverseChainingSupport().cache() : Mono.just(false);
     }
 
     @PostConstruct
     public void init() {
-        logger.info("Start DataStore with pageCount: {}", pageCount);
+        logger.info("Start DataStore with: {}", config);
+        if (config.reverseChaining) {
+            reverseChainingSupport.subscribe(supported -> logger.info("The FHIR server {} reverse chaining.",
+                    supported ? "supports" : "doesn't support"));
+        }
     }
 
     @Override
     public Mono<Population> execute(UUID id, Query query, boolean ignoreCache) {
+        return Mono.defer(() -> execute(id, query, clock.instant()));
+    }
+
+    /**
+     * Executes {@code query} and returns the population with the {@code created} instant, which is taken before the
+     * first request, so that no resource updated during the execution is older than the population.
+     */
+    private Mono<Population> execute(UUID id, Query query, Instant created) {
         var startNanoTime = System.nanoTime();
         logger.debug("Execute query as part of query {}: {}", id, query);
+        return searchQuery(query)
+                .flatMapMany(searchQuery -> probeTotal(searchQuery)
+                        .flatMapMany(total -> Flux.fromIterable(partitions(searchQuery.type(), total))
+                                .flatMap(partitionParams -> fetchAllPages(searchQuery, partitionParams, total),
+                                        config.partitionParallelism)))
+                .collect(Population::builder, (builder, bundle) -> builder.addAll(bundle.patientIds()))
+                .map(builder -> builder.build().withCreated(created))
+                .doOnNext(p -> logger.debug("Finished query `{}` as part of query {} returning {} patients in {} seconds.", query, id, p.size(),
+                        "%.1f".formatted(Util.durationSecondsSince(startNanoTime))))
+                .doOnError(e -> logger.error("Error while executing query `{}` as part of query {}: {}", query, id, e.getMessage()));
+    }
+
+    /**
+     * Returns the query to search with, which is the {@link Query#toReverseChained(String) reverse chained} Patient
+     * query if reverse chaining is enabled, supported by the server and possible for {@code query}.
+     */
+    private Mono<Query> searchQuery(Query query) {
+        if (!config.reverseChaining) {
+            return Mono.just(query);
+        }
+        return referenceParam(query.type())
+                .flatMap(query::toReverseChained)
+                .map(reverseChained -> reverseChainingSupport.map(supported -> supported ? reverseChained : query))
+                .orElse(Mono.just(query));
+    }
+
+    /**
+     * Detects reverse chaining support by searching for patients with an Observation of a non-existing id. The
+     * search asks for strict handling, so that servers which don't support {@code _has} return an error instead of
+     * ignoring the param and returning all patients.
+     */
+    private Mono<Boolean> detectReverseChainingSupport() {
+        return client.post()
+                .uri("/Patient/_search")
+                .contentType(APPLICATION_FORM_URLENCODED)
+                .header("Prefer", "handling=strict")
+                .bodyValue("_has:Observation:subject:_id=flare-reverse-chaining-probe&_summary=count")
+                .retrieve()
+                .bodyToMono(Bundle.class)
+                .map(bundle -> bundle.knownTotal().orElse(-1) == 0)
+                .onErrorResume(e -> {
+                    logger.warn("Disable reverse chaining because the detection failed with: {}", e.getMessage());
+                    return Mono.just(false);
+                })
+                .defaultIfEmpty(false);
+    }
+
+    /**
+     * Returns the total number of resources matching {@code query} using a {@code _summary=count} search if the count
+     * probe is enabled. Returns {@code -1} if the total is unknown.
+     */
+    private Mono<Integer> probeTotal(Query query) {
+        if (!config.countProbe) {
+            return Mono.just(-1);
+        }
         return client.post()
                 .uri("/{type}/_search", query.type())
                 .contentType(APPLICATION_FORM_URLENCODED)
-                .bodyValue(query.params().appendParams(extraQueryParams(query.type())).toString())
+                .bodyValue(query.params().appendParam("_summary", stringValue("count")).toString())
                 .retrieve()
-                .bodyToFlux(Bundle.class)
-                .expand(bundle -> bundle.linkWithRel("next")
-                        .map(link -> fetchPage(link.url()))
+                .bodyToMono(Bundle.class)
+                .map(bundle -> bundle.knownTotal().orElse(-1))
+                .retryWhen(retrySpec())
+                .doOnNext(total -> logger.trace("Probed total of {} resources for query `{}`.", total, query));
+    }
+
+    /**
+     * Returns the params of the partitions to fetch for a query of {@code type} with {@code total} matching resources.
+     * A {@code total} of {@code -1} means that the number of matching resources is unknown.
+     */
+    private List<QueryParams> partitions(String type, int total) {
+        if (total == 0) {
+            return List.of();
+        }
+        return lastUpdatedPartitions(total > 0 && total <= pageCounts.pageCount(type, total) ? 1 :
+                config.partitionCount, config.partitionStart, clock.instant());
+    }
+
+    /**
+     * Returns the params of {@code count} {@code _lastUpdated} ranges which divide the time between {@code start} and
+     * {@code end} evenly and together cover all resources.
+     * <p>
+     * Returns a single empty params if {@code count} is one.
+     */
+    static List<QueryParams> lastUpdatedPartitions(int count, Instant start, Instant end) {
+        if (count == 1) {
+            return List.of(QueryParams.EMPTY);
+        }
+        var step = Duration.between(start, end).dividedBy(count);
+        var bounds = IntStream.range(1, count)
+                .mapToObj(i -> start.plus(step.multipliedBy(i)).truncatedTo(ChronoUnit.SECONDS).toString())
+                .toList();
+        var partitions = new ArrayList<QueryParams>(count);
+        partitions.add(QueryParams.of("_lastUpdated", stringValue("lt" + bounds.get(0))));
+        for (int i = 1; i < bounds.size(); i++) {
+            partitions.add(QueryParams.of("_lastUpdated", stringValue("ge" + bounds.get(i - 1)))
+                    .appendParam("_lastUpdated", stringValue("lt" + bounds.get(i))));
+        }
+        partitions.add(QueryParams.of("_lastUpdated", stringValue("ge" + bounds.get(bounds.size() - 1))));
+        return partitions;
+    }
+
+    /**
+     * Fetches all pages of {@code query} restricted by {@code partitionParams}. The page count is determined at
+     * subscription, so that retries after a page exceeded the size limit of the codec use the adapted page count.
+     */
+    private Flux<Bundle> fetchAllPages(Query query, QueryParams partitionParams, int total) {
+        return Flux.defer(() -> fetchAllPagesWith(query, partitionParams, pageCounts.pageCount(query.type(), total)))
+                .retryWhen(retrySpec().modifyErrorFilter(filter ->
+                        filter.or(e -> pageCounts.adaptive() && exceedsSizeLimit(e))));
+    }
+
+    private Flux<Bundle> fetchAllPagesWith(Query query, QueryParams partitionParams, int pageCount) {
+        return timed(query.type(), pageCount, client.post()
+                .uri("/{type}/_search", query.type())
+                .contentType(APPLICATION_FORM_URLENCODED)
+                .bodyValue(query.params().appendParams(extraQueryParams(query.type(), pageCount))
+                        .appendParams(partitionParams).toString())
+                .retrieve()
+                .bodyToMono(Bundle.class))
+                .expand(bundle -> bundle.nextPageUrl()
+                        .map(url -> timed(query.type(), pageCount, fetchPage(url)))
                         .orElse(Mono.empty()))
-                .retryWhen(Retry.backoff(3, Duration.ofSeconds(1))
-                        .filter(e -> e instanceof WebClientResponseException &&
-                                shouldRetry(((WebClientResponseException) e).getStatusCode())))
-                .flatMap(bundle -> Flux.fromStream(bundle.entry().stream().flatMap(e -> e.resource().patientId().stream())))
-                .collect(Collectors.toSet())
-                .map(patientIds -> Population.copyOf(patientIds).withCreated(clock.instant()))
-                .doOnNext(p -> logger.debug("Finished query `{}` as part of query {} returning {} patients in {} seconds.", query, id, p.size(),
-                        "%.1f".formatted(Util.durationSecondsSince(startNanoTime))))
-                .doOnError(e -> logger.error("Error while executing query `{}` as part of query {}: {}", query, id, e.getMessage()));
+                .doOnError(DataStore::exceedsSizeLimit, e -> pageCounts.overflow(query.type(), pageCount));
+    }
+
+    /**
+     * Reports the latency and the number of resources of {@code page} to the page counts.
+     */
+    private Mono<Bundle> timed(String type, int pageCount, Mono<Bundle> page) {
+        return Mono.defer(() -> {
+            var startNanoTime = System.nanoTime();
+            return page.doOnNext(bundle -> pageCounts.observe(type, pageCount, bundle.patientIds().size(),
+                    System.nanoTime() - startNanoTime));
+        });
+    }
+
+    private static boolean exceedsSizeLimit(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DataBufferLimitException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static RetryBackoffSpec retrySpec() {
+        return Retry.backoff(3, Duration.ofSeconds(1))
+                .filter(e -> e instanceof WebClientResponseException &&
+                        shouldRetry(((WebClientResponseException) e).getStatusCode()));
     }
 
     private static boolean shouldRetry(HttpStatusCode code) {
@@ -85,7 +241,7 @@ public class DataStore implements FhirQueryService {
                 .bodyToMono(Bundle.class);
     }
 
-    private QueryParams extraQueryParams(String type) {
+    private static QueryParams extraQueryParams(String type, int pageCount) {
         return QueryParams.of("_elements", stringValue(queryElements(type)))
                 .appendParam("_count", stringValue(Integer.toString(pageCount)));
     }
@@ -95,11 +251,78 @@ public class DataStore implements FhirQueryService {
      * for all other resource types, we need the subject reference.
      */
     private static String queryElements(String type) {
+        return referenceParam(type).orElse("id");
+    }
+
+    /**
+     * The search param referencing the patient of resources of {@code type} or nothing for patients itself.
+     */
+    private static Optional<String> referenceParam(String type) {
         return switch (type) {
-            case "Patient" -> "id";
-            case "Immunization" -> "patient";
-            case "Consent" -> "patient";
-            default -> "subject";
+            case "Patient" -> Optional.empty();
+            case "Immunization", "Consent" -> Optional.of("patient");
+            default -> Optional.of("subject");
         };
     }
+
+    /**
+     * The configuration of a data store.
+     * <p>
+     * With a {@code pageCountMin} below the {@code pageCountMax}, the number of resources per page is adapted per
+     * resource type, starting at {@code pageCount}. Page counts grow for pages arriving in less than half of the
+     * {@code pageLatencyTarget}, shrink for pages taking longer and shrink after pages exceeding the size limit of the
+     * codec. Queries with a probed total not above the {@code pageCountMax} are fetched in a single page.
+     * <p>
+     * With {@code countProbe} enabled, every query is preceded by a {@code _summary=count} search. Queries without
+     * matching resources are answered with an empty population without paging and queries matching not more than one
+     * page of resources aren't split into partitions.
+     * <p>
+     * With a {@code partitionCount} greater than one, every query is split into that many {@code _lastUpdated} ranges
+     * which are fetched concurrently, up to {@code partitionParallelism} at a time. The ranges divide the time from
+     * {@code partitionStart} until the execution of the query evenly. The first range is open at the start and the
+     * last range is open at the end, so that no resource is missed.
+     * <p>
+     * With {@code reverseChaining} enabled, queries with a single param are rewritten into Patient searches using
+     * {@code _has}, if the FHIR server supports it. Only the ids of the matching patients are transferred instead of
+     * the references of all matching resources.
+     *
+     * @param pageCount            the initial number of resources per page to request
+     * @param pageCountMin         the lower bound of the number of resources per page
+     * @param pageCountMax         the upper bound of the number of resources per page
+     * @param pageLatencyTarget    the latency of a page the page count is adapted to
+     * @param countProbe           whether to probe the number of matching resources before fetching them
+     * @param partitionCount       the number of {@code _lastUpdated} ranges every query is split into
+     * @param partitionStart       the start of the evenly divided time
+     * @param partitionParallelism the maximum number of ranges fetched concurrently per query
+     * @param reverseChaining      whether to rewrite queries into Patient searches using {@code _has}
+     */
+    public record Config(int pageCount, int pageCountMin, int pageCountMax, Duration pageLatencyTarget,
+                         boolean countProbe, int partitionCount, Instant partitionStart, int partitionParallelism,
+                         boolean reverseChaining) {
+
+        public Config {
+            if (pageCountMin < 1 || pageCountMin > pageCount || pageCount > pageCountMax) {
+                throw new IllegalArgumentException("The page counts have to satisfy 1 <= min <= page count <= max.");
+            }
+            Objects.requireNonNull(pageLatencyTarget);
+            if (partitionCount < 1) {
+                throw new IllegalArgumentException("The partition count has to be at least one.");
+            }
+            if (partitionParallelism < 1) {
+                throw new IllegalArgumentException("The partition parallelism has to be at least one.");
+            }
+            Objects.requireNonNull(partitionStart);
+        }
+
+        /**
+         * Returns a config with the given fixed {@code pageCount} and all optional execution modes disabled.
+         *
+         * @param pageCount the number of resources per page to request
+         * @return the config
+         */
+        public static Config of(int pageCount) {
+            return new Config(pageCount, pageCount, pageCount, Duration.ofSeconds(2), false, 1, Instant.EPOCH, 1,
+                    false);
+        }
+    }
 }
@@ -130,10 +130,7 @@ public class DiskCachingFhirQueryService implements FhirQueryService {
     }
 
     private static ByteBuffer serializeQueryBuffer(Query query) {
-        byte[] bytes = serializeQuery(query);
-        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
-        buffer.put(bytes);
-        return buffer.flip();
+        return ByteBuffer.wrap(serializeQuery(query));
     }
 
     @PreDestroy
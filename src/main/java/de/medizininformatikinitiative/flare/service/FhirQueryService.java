@@ -28,4 +28,16 @@ public interface FhirQueryService {
     default Mono<Population> execute(UUID id, Query query) {
         return execute(id, query, false);
     }
+
+    /**
+     * Moves a waiting execution of {@code query}, which was started as cache refresh, to the executions of the
+     * structured query with {@code id}, because that structured query waits for its result now.
+     * <p>
+     * Services which don't schedule executions ignore this.
+     *
+     * @param id    the ID of the structured query waiting for the result
+     * @param query the query of the waiting execution
+     */
+    default void promote(UUID id, Query query) {
+    }
 }
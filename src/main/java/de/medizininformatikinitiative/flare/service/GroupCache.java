@@ -0,0 +1,267 @@
+package de.medizininformatikinitiative.flare.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Weigher;
+import de.medizininformatikinitiative.flare.model.Population;
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Caches the populations of criterion groups in memory.
+ * <p>
+ * Entries are keyed by the set of queries the criteria of a group translate to. So groups which only differ in the
+ * order of their criteria or in criteria translating to the same queries share one entry. Groups of a single query
+ * aren't cached here, because the population of that query is already cached by the {@link MemCachingFhirQueryService}.
+ * <p>
+ * The population of a group is the union of the populations of its queries, and its created instant is the oldest
+ * created instant of them. Entries expire {@link Config#maxAge() maxAge} after that instant, which should be the
+ * refresh duration of the memory cache, so that no entry outlives the refresh of one of its queries. Populations which
+ * are already older than that aren't cached at all.
+ * <p>
+ * On a miss, the population is assembled from the cached populations of groups whose queries are a subset of the
+ * queries of the missed group, like the groups of child concepts of a hierarchical concept. Only the queries not
+ * covered by such groups are executed. To find the groups, the cache maintains an index from each query to the keys
+ * of the groups containing it.
+ */
+public class GroupCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(GroupCache.class);
+
+    private static final Weigher<Set<Query>, Population> WEIGHER = (key, value) ->
+            key.stream().mapToInt(query -> query.toString().length()).sum() + value.memSize();
+
+    private final Config config;
+    private final Clock clock;
+    private final ConcurrentHashMap<Query, Set<Set<Query>>> index = new ConcurrentHashMap<>();
+    private AsyncCache<Set<Query>, Population> cache;
+
+    public GroupCache(Config config, Clock clock) {
+        this.config = requireNonNull(config);
+        this.clock = requireNonNull(clock);
+    }
+
+    @PostConstruct
+    public void init() {
+        logger.info("Starting GroupCache with: {}", config);
+        if (config.sizeInMebibytes > 0) {
+            cache = Caffeine.newBuilder()
+                    .weigher(WEIGHER)
+                    .maximumWeight(config.sizeInMebibytes << 20)
+                    .expireAfter(new CreatedExpiry())
+                    .removalListener((Set<Query> key, Population value, RemovalCause cause) -> {
+                        if (key != null && cause != RemovalCause.REPLACED) {
+                            unindex(key);
+                        }
+                    })
+                    .recordStats()
+                    .buildAsync();
+        }
+    }
+
+    /**
+     * Returns whether this cache is enabled.
+     *
+     * @return {@code true} if this cache is enabled
+     */
+    public boolean enabled() {
+        return cache != null;
+    }
+
+    /**
+     * Returns the cached population of the group of {@code queries} or assembles it from cached parts and the
+     * population returned by {@code executor} for the remaining queries.
+     *
+     * @param queries  the queries of the group
+     * @param executor a function executing a set of queries and returning the union of their populations
+     * @return the population of the group
+     */
+    public Mono<Population> execute(Set<Query> queries, Function<Set<Query>, Mono<Population>> executor) {
+        if (cache == null || queries.size() < 2) {
+            return executor.apply(queries);
+        }
+        return Mono.defer(() -> {
+            var key = Set.copyOf(queries);
+            var future = new CompletableFuture<Population>();
+            var cached = cache.get(key, (k, e) -> future);
+            if (cached == future) {
+                logger.trace("Cache miss for group of {} queries.", key.size());
+                assemble(key, executor).subscribe(population -> complete(key, future, population),
+                        future::completeExceptionally, () -> future.complete(null));
+            }
+            return Mono.fromFuture(cached, true);
+        });
+    }
+
+    /**
+     * Completes the {@code future} of the entry with {@code key}. Indexes the entry or removes it if its
+     * {@code population} is already expired.
+     */
+    private void complete(Set<Query> key, CompletableFuture<Population> future, Population population) {
+        if (remainingLifetime(population).isPositive()) {
+            future.complete(population);
+            index(key);
+        } else {
+            logger.trace("Skip caching the expired population of a group of {} queries.", key.size());
+            cache.asMap().remove(key, future);
+            future.complete(population);
+        }
+    }
+
+    private Duration remainingLifetime(Population population) {
+        return Duration.between(clock.instant(), population.created().plus(config.maxAge));
+    }
+
+    public CacheStats stats() {
+        if (cache == null) {
+            return new CacheStats(0, 0, 0, 0, 0, 0);
+        }
+        var syncCache = cache.synchronous();
+        var usedBytes = syncCache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+        var stats = syncCache.stats();
+        return new CacheStats(syncCache.estimatedSize(), config.sizeInMebibytes, usedBytes >> 20, stats.hitCount(),
+                stats.missCount(), stats.evictionCount());
+    }
+
+    private Mono<Population> assemble(Set<Query> queries, Function<Set<Query>, Mono<Population>> executor) {
+        var remaining = new HashSet<>(queries);
+        var parts = new ArrayList<Population>();
+        for (Set<Query> part : cachedSubsets(queries)) {
+            if (part.stream().anyMatch(remaining::contains)) {
+                var future = cache.asMap().get(part);
+                var population = future == null ? null : future.getNow(null);
+                if (population != null) {
+                    parts.add(population);
+                    remaining.removeAll(part);
+                }
+            }
+        }
+        if (parts.isEmpty()) {
+            return executor.apply(queries);
+        }
+        logger.trace("Assemble group of {} queries from {} cached groups and {} remaining queries.", queries.size(),
+                parts.size(), remaining.size());
+        if (remaining.isEmpty()) {
+            return Mono.just(Population.unionAll(parts));
+        }
+        return executor.apply(remaining)
+                .map(population -> Population.unionAll(concat(parts, population)))
+                .defaultIfEmpty(Population.unionAll(parts));
+    }
+
+    /**
+     * Returns the keys of all completed groups whose queries are a proper subset of {@code queries}, largest first.
+     * <p>
+     * Keys of groups no longer cached are removed from the index.
+     */
+    private List<Set<Query>> cachedSubsets(Set<Query> queries) {
+        var subsets = new HashSet<Set<Query>>();
+        for (Query query : queries) {
+            for (Set<Query> key : index.getOrDefault(query, Set.of())) {
+                if (key.size() < queries.size() && queries.containsAll(key)) {
+                    subsets.add(key);
+                }
+            }
+        }
+        return subsets.stream()
+                .filter(key -> {
+                    var future = cache.asMap().get(key);
+                    if (future == null) {
+                        unindex(key);
+                        return false;
+                    }
+                    return future.isDone() && !future.isCompletedExceptionally();
+                })
+                .sorted(Comparator.comparingInt(Set<Query>::size).reversed())
+                .toList();
+    }
+
+    private void index(Set<Query> key) {
+        for (Query query : key) {
+            index.compute(query, (q, keys) -> {
+                var result = keys == null ? ConcurrentHashMap.<Set<Query>>newKeySet() : keys;
+                result.add(key);
+                return result;
+            });
+        }
+    }
+
+    private void unindex(Set<Query> key) {
+        for (Query query : key) {
+            index.computeIfPresent(query, (q, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+    }
+
+    private static List<Population> concat(List<Population> parts, Population population) {
+        var populations = new ArrayList<>(parts);
+        populations.add(population);
+        return populations;
+    }
+
+    /**
+     * The configuration of the group cache.
+     *
+     * @param sizeInMebibytes the maximum size of all entries in mebibytes, zero disables the cache
+     * @param maxAge          the duration after the created instant of a population at which its entry expires
+     */
+    public record Config(long sizeInMebibytes, Duration maxAge) {
+
+        public Config {
+            if (sizeInMebibytes < 0) {
+                throw new IllegalArgumentException("The size must not be negative.");
+            }
+            requireNonNull(maxAge);
+        }
+
+        /**
+         * Returns a configuration of a disabled cache.
+         */
+        public static Config disabled() {
+            return new Config(0, Duration.ZERO);
+        }
+    }
+
+    public record CacheStats(long estimatedEntryCount, long maxMemoryMiB, long usedMemoryMiB, long hitCount,
+                             long missCount, long evictionCount) {
+    }
+
+    private class CreatedExpiry implements Expiry<Set<Query>, Population> {
+
+        @Override
+        public long expireAfterCreate(Set<Query> key, Population value, long currentTime) {
+            var remaining = remainingLifetime(value);
+            return remaining.isNegative() ? 0 : remaining.toNanos();
+        }
+
+        @Override
+        public long expireAfterUpdate(Set<Query> key, Population value, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, value, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(Set<Query> key, Population value, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
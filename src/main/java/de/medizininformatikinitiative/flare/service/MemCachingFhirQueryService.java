@@ -7,32 +7,80 @@ import com.github.benmanes.caffeine.cache.Weigher;
 import de.medizininformatikinitiative.flare.model.Population;
 import de.medizininformatikinitiative.flare.model.fhir.Query;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.time.Clock;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
 
+import static de.medizininformatikinitiative.flare.model.fhir.QueryParams.stringValue;
 import static java.util.Objects.requireNonNull;
 
+/**
+ * Caches populations in memory.
+ * <p>
+ * Entries are refreshed after {@link Config#refresh() refresh}. A refresh either executes the query again or, if the
+ * entry was fully loaded less than {@link Config#fullRefresh() fullRefresh} ago, executes the query restricted to
+ * resources with a {@code _lastUpdated} after the creation of the cached population and adds the resulting patients
+ * to it. Because such incremental refreshes can't remove patients whose resources were changed or deleted, entries are
+ * fully reloaded once they are older than {@code fullRefresh}.
+ * <p>
+ * Because refreshes on access would hit the data store during the first queries after {@code refresh}, entries can be
+ * refreshed proactively in a daily off-peak window starting at {@link Config#refreshStart() refreshStart}. All entries
+ * which would otherwise be refreshed before the next window are refreshed one after another, most frequently hit
+ * first, spread evenly over the window but not faster than {@link Config#refreshRate() refreshRate} per minute.
+ * Entries not refreshed until the end of the window are refreshed on access as usual.
+ * <p>
+ * Before a query is loaded, the cache looks for a {@link Query#broaderQueries() broader query} with an empty cached
+ * population. Because the query can't select any patient in that case, it is answered with the empty population of
+ * the broader query without executing it.
+ */
 public class MemCachingFhirQueryService implements FhirQueryService {
 
     private static final Logger logger = LoggerFactory.getLogger(MemCachingFhirQueryService.class);
 
-    private static final Weigher<QueryWrapper, Population> WEIGHER = (key, value) ->
-            key.query.toString().length() + value.memSize();
+    private static final Weigher<QueryWrapper, Entry> WEIGHER = (key, value) ->
+            key.query.toString().length() + value.population.memSize();
 
     private final FhirQueryService fhirQueryService;
+    private final FhirQueryService deltaFhirQueryService;
     private final Config config;
-    private AsyncLoadingCache<QueryWrapper, Population> cache;
+    private final Clock clock;
+    private AsyncLoadingCache<QueryWrapper, Entry> cache;
+    private Disposable scheduledRefreshes;
 
-    public MemCachingFhirQueryService(FhirQueryService fhirQueryService, Config config) {
+    /**
+     * Creates a new memory cache.
+     *
+     * @param fhirQueryService      the service to load entries from
+     * @param deltaFhirQueryService the service to execute the queries of incremental refreshes with, which should
+     *                              bypass other caches
+     * @param config                the configuration
+     * @param clock                 the clock used to determine the age of entries
+     */
+    public MemCachingFhirQueryService(FhirQueryService fhirQueryService, FhirQueryService deltaFhirQueryService,
+                                      Config config, Clock clock) {
         this.fhirQueryService = requireNonNull(fhirQueryService);
+        this.deltaFhirQueryService = requireNonNull(deltaFhirQueryService);
         this.config = requireNonNull(config);
+        this.clock = requireNonNull(clock);
     }
 
     @PostConstruct
@@ -45,19 +93,115 @@ public class MemCachingFhirQueryService implements FhirQueryService {
                 .refreshAfterWrite(config.refresh)
                 .recordStats()
                 .buildAsync(new CacheLoader());
+        if (config.refreshRate > 0) {
+            scheduledRefreshes = Flux.interval(untilNext(config.refreshStart, ZonedDateTime.now(clock)),
+                            Duration.ofDays(1))
+                    .onBackpressureDrop()
+                    .concatMap(tick -> refreshScheduled(clock.instant().plus(config.refreshWindow)))
+                    .subscribe(count -> logger.info("Refreshed {} entries of the memory cache in the off-peak window.",
+                            count));
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (scheduledRefreshes != null) {
+            scheduledRefreshes.dispose();
+        }
     }
 
     @Override
     public Mono<Population> execute(UUID id, Query query, boolean ignoreCache) {
         logger.trace("Try loading population for query `{}` part of query {} from memory.", query, id);
-        return Mono.fromFuture(cache.get(new QueryWrapper(id, query)));
+        return Mono.fromFuture(cache.get(new QueryWrapper(id, query)), true).map(Entry::hit);
+    }
+
+    /**
+     * Refreshes all entries returned by {@link #refreshCandidates() refreshCandidates} one after another, spread evenly
+     * over the time until {@code end} and limited by the configured refresh rate.
+     * <p>
+     * The next entry is only requested after the previous refresh completed and the window is checked again right
+     * before each refresh starts, so that a slow refresh can't cause further refreshes after {@code end}.
+     *
+     * @param end the instant after which no further refreshes are started
+     * @return the number of refreshed entries
+     */
+    Mono<Long> refreshScheduled(Instant end) {
+        return Mono.defer(() -> {
+            var candidates = refreshCandidates();
+            if (candidates.isEmpty()) {
+                return Mono.just(0L);
+            }
+            var window = Duration.between(clock.instant(), end).dividedBy(candidates.size());
+            var interval = max(window, Duration.ofMinutes(1).dividedBy(config.refreshRate));
+            logger.debug("Start refreshing {} entries of the memory cache with an interval of {}.", candidates.size(),
+                    interval);
+            return Flux.interval(Duration.ZERO, interval)
+                    .onBackpressureDrop()
+                    .zipWith(Flux.fromIterable(candidates), (tick, query) -> query)
+                    .takeWhile(query -> clock.instant().isBefore(end))
+                    .concatMap(query -> clock.instant().isBefore(end) ? refresh(query) : Mono.empty(), 0)
+                    .count();
+        });
+    }
+
+    /**
+     * Returns the keys of all entries which would be refreshed on access before the next refresh window, ordered by
+     * descending number of hits.
+     */
+    private List<QueryWrapper> refreshCandidates() {
+        var syncCache = cache.synchronous();
+        var refreshPolicy = syncCache.policy().refreshAfterWrite().orElseThrow();
+        var horizon = config.refresh.minus(Duration.ofDays(1));
+        return syncCache.asMap().entrySet().stream()
+                .filter(entry -> refreshPolicy.ageOf(entry.getKey()).map(age -> age.compareTo(horizon) >= 0)
+                        .orElse(false))
+                .sorted(Comparator.comparingLong((Map.Entry<QueryWrapper, Entry> entry) -> entry.getValue().hits())
+                        .reversed())
+                .map(Map.Entry::getKey)
+                .toList();
+    }
+
+    private Mono<Entry> refresh(QueryWrapper query) {
+        logger.trace("Refresh query `{}` in the off-peak window.", query.query);
+        return Mono.fromFuture(cache.synchronous().refresh(query), true)
+                .onErrorResume(e -> {
+                    logger.warn("Error while refreshing query `{}`: {}", query.query, e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Returns the cached empty population of one of the broader queries of {@code query} if there is one.
+     */
+    private Optional<Population> emptyBroaderPopulation(QueryWrapper query) {
+        return query.query.broaderQueries().stream()
+                .map(broader -> cache.asMap().get(new QueryWrapper(query.id, broader)))
+                .filter(future -> future != null && future.isDone() && !future.isCompletedExceptionally())
+                .map(future -> future.getNow(null))
+                .filter(entry -> entry != null && entry.population.isEmpty())
+                .map(Entry::population)
+                .findFirst();
+    }
+
+    private static Duration max(Duration a, Duration b) {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+
+    /**
+     * Returns the duration from {@code now} until the next occurrence of {@code time}.
+     */
+    static Duration untilNext(LocalTime time, ZonedDateTime now) {
+        var next = now.with(time);
+        return Duration.between(now, next.isAfter(now) ? next : next.plusDays(1));
     }
 
     public CacheStats stats() {
         var syncCache = cache.synchronous();
         return new CacheStats(syncCache.estimatedSize(),
                 config.sizeInMebibytes,
-                syncCache.asMap().values().stream().mapToInt(Population::memSize).sum() >> 20,
+                syncCache.asMap().values().stream().mapToLong(entry -> entry.population.memSize()).sum() >> 20,
+                syncCache.asMap().values().stream().mapToLong(entry -> entry.population.indexMemSize()).sum() >> 20,
                 syncCache.stats().hitCount(),
                 syncCache.stats().missCount(),
                 syncCache.stats().evictionCount(),
@@ -66,12 +210,65 @@ public class MemCachingFhirQueryService implements FhirQueryService {
                 syncCache.stats().totalLoadTime());
     }
 
-    public record Config(long sizeInMebibytes, Duration expire, Duration refresh) {
+    /**
+     * Returns the query which finds the resources matching {@code query} that were updated after {@code since}.
+     */
+    static Query deltaQuery(Query query, Instant since) {
+        return Query.of(query.type(), query.params().appendParam("_lastUpdated",
+                stringValue("gt" + since.truncatedTo(ChronoUnit.SECONDS))));
     }
 
-    public record CacheStats(long estimatedEntryCount, long maxMemoryMiB, long usedMemoryMiB, long hitCount,
-                             long missCount, long evictionCount, long loadSuccessCount, long loadFailureCount,
-                             long totalLoadTimeNanos) {
+    /**
+     * The configuration of the memory cache.
+     *
+     * @param sizeInMebibytes the maximum size of all entries in mebibytes
+     * @param expire          the duration after which entries expire
+     * @param refresh         the duration after which entries are refreshed
+     * @param fullRefresh     the maximum age of the last full load up to which refreshes are incremental, zero
+     *                        disables incremental refreshes
+     * @param refreshStart    the local time at which the daily refresh window starts
+     * @param refreshWindow   the duration of the daily refresh window
+     * @param refreshRate     the maximum number of refreshes per minute in the refresh window, zero disables
+     *                        scheduled refreshes
+     */
+    public record Config(long sizeInMebibytes, Duration expire, Duration refresh, Duration fullRefresh,
+                         LocalTime refreshStart, Duration refreshWindow, int refreshRate) {
+
+        public Config {
+            requireNonNull(refreshStart);
+            if (refreshWindow.isNegative() || refreshWindow.compareTo(Duration.ofDays(1)) >= 0) {
+                throw new IllegalArgumentException("The refresh window has to be shorter than one day.");
+            }
+            if (refreshRate < 0) {
+                throw new IllegalArgumentException("The refresh rate must not be negative.");
+            }
+        }
+
+        /**
+         * Returns a configuration without scheduled refreshes.
+         */
+        public static Config of(long sizeInMebibytes, Duration expire, Duration refresh, Duration fullRefresh) {
+            return new Config(sizeInMebibytes, expire, refresh, fullRefresh, LocalTime.MIDNIGHT, Duration.ZERO, 0);
+        }
+    }
+
+    /**
+     * The statistics of the memory cache.
+     *
+     * @param estimatedEntryCount the estimated number of entries
+     * @param maxMemoryMiB        the maximum size of all populations
+     * @param usedMemoryMiB       the size of all cached populations as weighed against {@code maxMemoryMiB}
+     * @param indexMemoryMiB      the size of the hashed membership indexes built on demand, which isn't weighed
+     * @param hitCount            the number of hits
+     * @param missCount           the number of misses
+     * @param evictionCount       the number of evicted entries
+     * @param loadSuccessCount    the number of successfully loaded entries
+     * @param loadFailureCount    the number of failed loads
+     * @param totalLoadTimeNanos  the time spent loading entries in nanoseconds
+     */
+    public record CacheStats(long estimatedEntryCount, long maxMemoryMiB, long usedMemoryMiB, long indexMemoryMiB,
+                             long hitCount, long missCount, long evictionCount, long loadSuccessCount,
+                             long loadFailureCount, long totalLoadTimeNanos) {
     }
 
     private record QueryWrapper(UUID id, Query query) {
@@ -94,18 +291,62 @@ public class MemCachingFhirQueryService implements FhirQueryService {
         }
     }
 
-    private class CacheLoader implements AsyncCacheLoader<QueryWrapper, Population> {
+    /**
+     * A cached population together with the instant at which the population was last loaded completely and the number
+     * of hits. On refresh, half of the hits are carried over, so that the hits decay over time.
+     */
+    private record Entry(Population population, Instant fullyLoaded, LongAdder hitCounter) {
+
+        private Entry(Population population, Instant fullyLoaded, long hits) {
+            this(population, fullyLoaded, new LongAdder());
+            hitCounter.add(hits);
+        }
+
+        private static Entry full(Population population) {
+            return new Entry(population, population.created(), 0);
+        }
+
+        private Entry reloaded(Population population, Instant fullyLoaded) {
+            return new Entry(population, fullyLoaded, hits() / 2);
+        }
+
+        private long hits() {
+            return hitCounter.sum();
+        }
+
+        private Population hit() {
+            hitCounter.increment();
+            return population;
+        }
+    }
+
+    private class CacheLoader implements AsyncCacheLoader<QueryWrapper, Entry> {
 
         @Override
-        public CompletableFuture<Population> asyncLoad(QueryWrapper query, Executor executor) {
+        public CompletableFuture<Entry> asyncLoad(QueryWrapper query, Executor executor) {
             logger.trace("Cache miss for query `{}` part of query {}.", query.query, query.id);
-            return fhirQueryService.execute(query.id, query.query).toFuture();
+            var emptyPopulation = emptyBroaderPopulation(query);
+            if (emptyPopulation.isPresent()) {
+                logger.trace("Answer query `{}` from an empty broader query.", query.query);
+                return CompletableFuture.completedFuture(Entry.full(emptyPopulation.get()));
+            }
+            return fhirQueryService.execute(query.id, query.query).map(Entry::full).toFuture();
         }
 
         @Override
-        public CompletableFuture<Population> asyncReload(QueryWrapper query, Population oldValue, Executor executor) {
+        public CompletableFuture<Entry> asyncReload(QueryWrapper query, Entry oldValue, Executor executor) {
+            if (clock.instant().isBefore(oldValue.fullyLoaded.plus(config.fullRefresh))) {
+                var since = oldValue.population.created();
+                logger.trace("Refresh query `{}` incrementally since {}.", query.query, since);
+                return deltaFhirQueryService.execute(query.id, deltaQuery(query.query, since), true)
+                        .map(delta -> oldValue.reloaded(oldValue.population.union(delta)
+                                .withCreated(delta.created()), oldValue.fullyLoaded))
+                        .toFuture();
+            }
             logger.trace("Refresh query `{}`.", query.query);
-            return fhirQueryService.execute(query.id, query.query, true).toFuture();
+            return fhirQueryService.execute(query.id, query.query, true)
+                    .map(population -> oldValue.reloaded(population, population.created()))
+                    .toFuture();
         }
     }
 }
@@ -0,0 +1,207 @@
+package de.medizininformatikinitiative.flare.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Weigher;
+import de.medizininformatikinitiative.flare.model.Population;
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Caches populations outside of the Java heap.
+ * <p>
+ * This cache sits between the memory cache and the disk cache. Populations are stored in direct byte buffers in the
+ * format of {@link Population#toOffHeapBuffer()}, so that a large number of populations can be held without growing
+ * the heap and the GC pauses with it. Entries are evicted by the size of their buffers and expire
+ * {@link Config#expire() expire} after the created instant of their population. Keys and the small entry objects stay
+ * on the heap and are not counted.
+ * <p>
+ * The memory of an evicted buffer is only released when the garbage collector collects the buffer. So the direct
+ * memory in use can exceed the size of this cache by the buffers evicted since the last collection. The JVM limits
+ * direct memory by {@code -XX:MaxDirectMemorySize} and triggers a collection if an allocation would exceed it, which
+ * doesn't work with {@code -XX:+DisableExplicitGC}. {@code -XX:MaxDirectMemorySize} should be at least twice the size
+ * of this cache plus the direct memory used by the HTTP client. The {@link #stats() stats} report both the size of
+ * the cached buffers and the direct memory in use.
+ * <p>
+ * Set operations don't work on the buffers directly. The cache is a storage tier only: a hit decodes the buffer into a
+ * population on the given scheduler, which is one linear pass over the delta-encoded ordinals, so that no subscriber
+ * thread is blocked by it, and all set operations run on the decoded populations.
+ * <p>
+ * The buffers store ordinals of the process-wide patient id dictionary instead of patient ids. Because the ordinals of
+ * reclaimed patient ids are reused, every reclaim has to include the {@link #buffers() buffers} of this cache, which
+ * {@link PatientIdReclaimer} does. Otherwise a buffer would decode to other patient ids.
+ * <p>
+ * With a size of zero, the cache is disabled and passes all executions through.
+ */
+public class OffHeapCachingFhirQueryService implements FhirQueryService {
+
+    private static final Logger logger = LoggerFactory.getLogger(OffHeapCachingFhirQueryService.class);
+
+    private static final Weigher<Query, Entry> WEIGHER = (key, value) -> value.buffer.capacity();
+
+    private final FhirQueryService fhirQueryService;
+    private final Config config;
+    private final Scheduler scheduler;
+    private final Clock clock;
+    private Cache<Query, Entry> cache;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    public OffHeapCachingFhirQueryService(FhirQueryService fhirQueryService, Config config, Scheduler scheduler,
+                                          Clock clock) {
+        this.fhirQueryService = requireNonNull(fhirQueryService);
+        this.config = requireNonNull(config);
+        this.scheduler = requireNonNull(scheduler);
+        this.clock = requireNonNull(clock);
+    }
+
+    @PostConstruct
+    public void init() {
+        logger.info("Starting OffHeapCachingFhirQueryService with: {}", config);
+        if (config.sizeInMebibytes > 0) {
+            cache = Caffeine.newBuilder()
+                    .weigher(WEIGHER)
+                    .maximumWeight(config.sizeInMebibytes << 20)
+                    .expireAfter(new CreatedExpiry())
+                    .build();
+        }
+    }
+
+    @Override
+    public Mono<Population> execute(UUID id, Query query, boolean ignoreCache) {
+        if (cache == null) {
+            return fhirQueryService.execute(id, query, ignoreCache);
+        }
+        if (ignoreCache) {
+            return executeQuery(id, query, true);
+        }
+        return Mono.fromSupplier(() -> get(query)).subscribeOn(scheduler).switchIfEmpty(Mono.defer(() -> executeQuery(id, query, false)));
+    }
+
+    private Mono<Population> executeQuery(UUID id, Query query, boolean ignoreCache) {
+        return fhirQueryService.execute(id, query, ignoreCache).doOnNext(population -> put(query, population));
+    }
+
+    private Population get(Query query) {
+        logger.trace("Try loading population for query `{}` from off-heap memory.", query);
+        var entry = cache.getIfPresent(query);
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        try {
+            var population = Population.fromOffHeapBuffer(entry.buffer);
+            hitCount.incrementAndGet();
+            return population;
+        } catch (SerializerException e) {
+            logger.warn("Skip loading population because of: {}", e.getMessage());
+            cache.invalidate(query);
+            return null;
+        }
+    }
+
+    private void put(Query query, Population population) {
+        logger.trace("Store result of size {} for query `{}` in off-heap memory.", population.size(), query);
+        cache.put(query, new Entry(population.created(), population.toOffHeapBuffer()));
+    }
+
+    /**
+     * Returns the buffers of all entries. They keep the ordinals of patient ids outside of populations.
+     *
+     * @return the buffers of all entries
+     */
+    Stream<ByteBuffer> buffers() {
+        return cache == null ? Stream.empty() : cache.asMap().values().stream().map(entry -> entry.buffer);
+    }
+
+    public CacheStats stats() {
+        if (cache == null) {
+            return new CacheStats(0, 0, 0, directMemoryBytes() >> 20, 0, 0);
+        }
+        var usedBytes = cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+        return new CacheStats(cache.estimatedSize(), config.sizeInMebibytes, usedBytes >> 20,
+                directMemoryBytes() >> 20, hitCount.get(), missCount.get());
+    }
+
+    /**
+     * Returns the direct memory in use by all direct buffers of the JVM, including evicted buffers not collected yet.
+     */
+    private static long directMemoryBytes() {
+        return ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(pool -> pool.getName().equals("direct"))
+                .mapToLong(BufferPoolMXBean::getMemoryUsed)
+                .sum();
+    }
+
+    /**
+     * The configuration of the off-heap cache.
+     *
+     * @param sizeInMebibytes the maximum size of all entries in mebibytes, zero disables the cache
+     * @param expire          the duration after the created instant of a population at which its entry expires
+     */
+    public record Config(long sizeInMebibytes, Duration expire) {
+
+        public Config {
+            if (sizeInMebibytes < 0) {
+                throw new IllegalArgumentException("The size must not be negative.");
+            }
+            requireNonNull(expire);
+        }
+    }
+
+    /**
+     * The statistics of the off-heap cache.
+     *
+     * @param estimatedEntryCount the estimated number of entries
+     * @param maxMemoryMiB        the maximum size of all buffers
+     * @param usedMemoryMiB       the size of all cached buffers
+     * @param directMemoryMiB     the direct memory in use by the JVM, including evicted buffers not collected yet
+     * @param hitCount            the number of hits
+     * @param missCount           the number of misses
+     */
+    public record CacheStats(long estimatedEntryCount, long maxMemoryMiB, long usedMemoryMiB, long directMemoryMiB,
+                             long hitCount, long missCount) {
+    }
+
+    /**
+     * A serialized population together with its created instant, which is kept on the heap for expiry.
+     */
+    private record Entry(Instant created, ByteBuffer buffer) {
+    }
+
+    private class CreatedExpiry implements Expiry<Query, Entry> {
+
+        @Override
+        public long expireAfterCreate(Query key, Entry value, long currentTime) {
+            var remaining = Duration.between(clock.instant(), value.created.plus(config.expire));
+            return remaining.isNegative() ? 0 : remaining.toNanos();
+        }
+
+        @Override
+        public long expireAfterUpdate(Query key, Entry value, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, value, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(Query key, Entry value, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package de.medizininformatikinitiative.flare.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The number of resources per page to request from the FHIR server, adapted per resource type.
+ * <p>
+ * Every resource type starts with the initial page count. After each full page, the page count of its resource type is
+ * doubled if the page arrived in less than half of the latency target and halved if it took longer than the latency
+ * target. A page which exceeds the size limit of the codec halves the page count, so that a retry uses smaller pages,
+ * and lowers the upper bound of its resource type below the page count of that page. The page count always stays
+ * within the bounds. Adaptation is disabled if both bounds are the same.
+ */
+final class PageCounts {
+
+    private static final Logger logger = LoggerFactory.getLogger(PageCounts.class);
+
+    private final int initial;
+    private final int min;
+    private final int max;
+    private final long latencyTargetNanos;
+    private final ConcurrentHashMap<String, Integer> counts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> maxCounts = new ConcurrentHashMap<>();
+
+    PageCounts(int initial, int min, int max, Duration latencyTarget) {
+        if (min < 1 || min > initial || initial > max) {
+            throw new IllegalArgumentException("The page count bounds have to satisfy 1 <= min <= initial <= max.");
+        }
+        this.initial = initial;
+        this.min = min;
+        this.max = max;
+        this.latencyTargetNanos = latencyTarget.toNanos();
+    }
+
+    boolean adaptive() {
+        return min < max;
+    }
+
+    /**
+     * Returns the current page count of {@code type}.
+     *
+     * @param type the resource type
+     * @return the current page count of {@code type}
+     */
+    int pageCount(String type) {
+        return counts.getOrDefault(type, initial);
+    }
+
+    /**
+     * Returns the page count for a query of {@code type} with {@code total} matching resources. Queries with a known
+     * total not above the upper bound of {@code type} are fetched in a single page.
+     *
+     * @param type  the resource type
+     * @param total the number of matching resources or {@code -1} if it is unknown
+     * @return the page count to use
+     */
+    int pageCount(String type, int total) {
+        int count = pageCount(type);
+        return total > count && total <= maxCount(type) ? total : count;
+    }
+
+    /**
+     * Adapts the page count of {@code type} to a page fetched with {@code pageCount} that contained
+     * {@code resourceCount} resources and took {@code latencyNanos}.
+     * <p>
+     * Pages which aren't full are ignored, because their latency doesn't depend on the page count.
+     *
+     * @param type          the resource type
+     * @param pageCount     the page count used to fetch the page
+     * @param resourceCount the number of resources in the page
+     * @param latencyNanos  the time it took to fetch the page
+     */
+    void observe(String type, int pageCount, int resourceCount, long latencyNanos) {
+        if (!adaptive() || resourceCount < pageCount) {
+            return;
+        }
+        if (latencyNanos < latencyTargetNanos / 2) {
+            int maxCount = maxCount(type);
+            adapt(type, count -> Math.max(count, Math.min(maxCount, pageCount * 2)));
+        } else if (latencyNanos > latencyTargetNanos) {
+            shrink(type, pageCount);
+        }
+    }
+
+    /**
+     * Halves the page count of {@code type} and lowers its upper bound below {@code pageCount} after a page fetched
+     * with {@code pageCount} exceeded the size limit of the codec.
+     *
+     * @param type      the resource type
+     * @param pageCount the page count used to fetch the page
+     */
+    void overflow(String type, int pageCount) {
+        if (adaptive()) {
+            maxCounts.merge(type, Math.max(min, pageCount - 1), Math::min);
+            shrink(type, pageCount);
+        }
+    }
+
+    private int maxCount(String type) {
+        return maxCounts.getOrDefault(type, max);
+    }
+
+    private void shrink(String type, int pageCount) {
+        adapt(type, count -> Math.min(count, Math.max(min, pageCount / 2)));
+    }
+
+    private void adapt(String type, IntUnaryOperator adaption) {
+        counts.compute(type, (t, count) -> {
+            int current = count == null ? initial : count;
+            int adapted = adaption.applyAsInt(current);
+            if (adapted != current) {
+                logger.debug("Adapt the page count of {} from {} to {}.", t, current, adapted);
+            }
+            return adapted;
+        });
+    }
+}
@@ -0,0 +1,83 @@
+package de.medizininformatikinitiative.flare.service;
+
+import de.medizininformatikinitiative.flare.model.Population;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.stream.Stream;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Removes patient ids no longer used from the dictionary shared by all populations.
+ * <p>
+ * Every {@link Config#interval() interval}, the buffers of the off-heap cache are passed to
+ * {@link Population#reclaimPatientIds(Stream) reclaimPatientIds}, which keeps the patient ids of them and of all
+ * populations still reachable, like the ones of the memory cache, the group cache and running queries. Patient ids
+ * only collected by a population builder so far stay valid for one interval, so the interval has to be much longer
+ * than the loading of any population.
+ * <p>
+ * With an interval of zero, patient ids are never removed.
+ */
+public class PatientIdReclaimer {
+
+    private static final Logger logger = LoggerFactory.getLogger(PatientIdReclaimer.class);
+
+    private final OffHeapCachingFhirQueryService offHeapCache;
+    private final Config config;
+    private Disposable scheduledReclaims;
+
+    public PatientIdReclaimer(OffHeapCachingFhirQueryService offHeapCache, Config config) {
+        this.offHeapCache = requireNonNull(offHeapCache);
+        this.config = requireNonNull(config);
+    }
+
+    @PostConstruct
+    public void init() {
+        logger.info("Starting PatientIdReclaimer with: {}", config);
+        if (config.interval.isPositive()) {
+            scheduledReclaims = Flux.interval(config.interval, config.interval, Schedulers.boundedElastic())
+                    .onBackpressureDrop()
+                    .map(tick -> reclaim())
+                    .subscribe(count -> logger.info("Removed {} patient ids no longer used.", count));
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (scheduledReclaims != null) {
+            scheduledReclaims.dispose();
+        }
+    }
+
+    /**
+     * Removes all patient ids which are not part of any reachable population or off-heap buffer and weren't used since
+     * the previous reclaim.
+     *
+     * @return the number of removed patient ids
+     */
+    public int reclaim() {
+        return Population.reclaimPatientIds(offHeapCache.buffers());
+    }
+
+    /**
+     * The configuration of the reclaimer.
+     *
+     * @param interval the duration between two reclaims, zero disables reclaims
+     */
+    public record Config(Duration interval) {
+
+        public Config {
+            requireNonNull(interval);
+            if (interval.isNegative()) {
+                throw new IllegalArgumentException("The interval must not be negative.");
+            }
+        }
+    }
+}
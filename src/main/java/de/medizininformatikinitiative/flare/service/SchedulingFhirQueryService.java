@@ -0,0 +1,295 @@
+package de.medizininformatikinitiative.flare.service;
+
+import de.medizininformatikinitiative.flare.model.Population;
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Limits the number of concurrent executions of the underlying service and schedules waiting executions fairly.
+ * <p>
+ * Executions are grouped into flows by the ID of the structured query they are part of. Cache refreshes, which are
+ * executions with {@code ignoreCache} set, form one separate flow. Waiting flows are served in weighted round-robin
+ * order, so that a structured query with many criteria doesn't delay the criteria of other structured queries. Every
+ * query flow has a weight of one. The refresh flow has the configured refresh weight or, with a weight of zero, is only
+ * served if no query flow waits.
+ * <p>
+ * A waiting cache refresh can be {@link #promote(UUID, Query) promoted} to the flow of a structured query, if that
+ * structured query waits for its result.
+ * <p>
+ * If the queue is full, the last waiting execution of the longest flow is rejected with an
+ * {@link AdmissionRejectedException}. A new execution belonging to the longest flow itself is rejected immediately.
+ * <p>
+ * With a maximum of zero concurrent executions, the scheduler is disabled and passes all executions through.
+ */
+public class SchedulingFhirQueryService implements FhirQueryService {
+
+    private static final Logger logger = LoggerFactory.getLogger(SchedulingFhirQueryService.class);
+
+    private final FhirQueryService fhirQueryService;
+    private final Config config;
+
+    private final Map<UUID, Flow> queryFlows = new HashMap<>();
+    private final Flow refreshFlow;
+    private final ArrayDeque<Flow> ring = new ArrayDeque<>();
+    private int running;
+    private int waiting;
+
+    public SchedulingFhirQueryService(FhirQueryService fhirQueryService, Config config) {
+        this.fhirQueryService = requireNonNull(fhirQueryService);
+        this.config = requireNonNull(config);
+        this.refreshFlow = new Flow(null, config.refreshWeight);
+    }
+
+    @PostConstruct
+    public void init() {
+        logger.info("Start SchedulingFhirQueryService with: {}", config);
+    }
+
+    @Override
+    public Mono<Population> execute(UUID id, Query query, boolean ignoreCache) {
+        if (config.maxConcurrent == 0) {
+            return fhirQueryService.execute(id, query, ignoreCache);
+        }
+        return Mono.<Permit>create(sink -> acquire(id, query, ignoreCache, sink))
+                .flatMap(permit -> fhirQueryService.execute(id, query, ignoreCache)
+                        .doFinally(signal -> permit.release()));
+    }
+
+    private void acquire(UUID id, Query query, boolean ignoreCache, MonoSink<Permit> sink) {
+        var waiter = new Waiter(query, sink);
+        Waiter rejected = null;
+        boolean granted = false;
+        synchronized (this) {
+            if (running < config.maxConcurrent && waiting == 0) {
+                running++;
+                waiter.granted = granted = true;
+            } else {
+                var flow = ignoreCache ? refreshFlow : queryFlows.computeIfAbsent(id, key -> new Flow(key, 1));
+                if (waiting >= config.maxQueueSize) {
+                    var evicted = evictFromLongerFlow(flow);
+                    rejected = evicted == null ? waiter : evicted;
+                }
+                if (rejected == waiter) {
+                    removeIfIdle(flow);
+                } else {
+                    enqueue(flow, waiter);
+                    sink.onCancel(() -> cancel(waiter));
+                }
+            }
+        }
+        if (granted) {
+            waiter.grant();
+        } else if (rejected != null) {
+            rejected.reject();
+        }
+    }
+
+    /**
+     * Removes and returns the last waiter of the longest flow if that flow is longer than {@code flow}. Otherwise
+     * returns {@code null}.
+     */
+    private Waiter evictFromLongerFlow(Flow flow) {
+        var longest = refreshFlow;
+        for (Flow f : queryFlows.values()) {
+            if (f.waiters.size() > longest.waiters.size()) {
+                longest = f;
+            }
+        }
+        if (longest.waiters.size() <= flow.waiters.size()) {
+            return null;
+        }
+        var evicted = longest.waiters.pollLast();
+        waiting--;
+        if (longest.waiters.isEmpty()) {
+            ring.remove(longest);
+            removeIfIdle(longest);
+        }
+        return evicted;
+    }
+
+    private void enqueue(Flow flow, Waiter waiter) {
+        if (flow.waiters.isEmpty() && flow.weight > 0) {
+            ring.addLast(flow);
+        }
+        flow.waiters.addLast(waiter);
+        waiter.flow = flow;
+        waiting++;
+    }
+
+    /**
+     * Removes {@code waiter} from its flow. Returns {@code true} if it was waiting.
+     */
+    private boolean dequeue(Waiter waiter) {
+        var flow = waiter.flow;
+        if (!flow.waiters.remove(waiter)) {
+            return false;
+        }
+        waiting--;
+        if (flow.waiters.isEmpty()) {
+            ring.remove(flow);
+            flow.served = 0;
+            removeIfIdle(flow);
+        }
+        return true;
+    }
+
+    private void cancel(Waiter waiter) {
+        synchronized (this) {
+            if (!waiter.granted) {
+                dequeue(waiter);
+                return;
+            }
+        }
+        waiter.permit.release();
+    }
+
+    /**
+     * Moves the waiting cache refresh of {@code query} to the end of the flow of the structured query with
+     * {@code id}.
+     */
+    @Override
+    public void promote(UUID id, Query query) {
+        synchronized (this) {
+            for (Waiter waiter : refreshFlow.waiters) {
+                if (waiter.query.equals(query)) {
+                    dequeue(waiter);
+                    enqueue(queryFlows.computeIfAbsent(id, key -> new Flow(key, 1)), waiter);
+                    logger.trace("Promoted the refresh of query `{}` to the structured query with id {}.", query, id);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void release() {
+        List<Waiter> granted = new ArrayList<>();
+        synchronized (this) {
+            running--;
+            Waiter next;
+            while (running < config.maxConcurrent && (next = next()) != null) {
+                running++;
+                waiting--;
+                next.granted = true;
+                granted.add(next);
+            }
+        }
+        granted.forEach(Waiter::grant);
+    }
+
+    /**
+     * Removes and returns the next waiter in weighted round-robin order or {@code null} if none waits.
+     */
+    private Waiter next() {
+        var flow = ring.peekFirst();
+        if (flow == null) {
+            return refreshFlow.weight == 0 ? refreshFlow.waiters.pollFirst() : null;
+        }
+        var waiter = flow.waiters.pollFirst();
+        if (++flow.served >= flow.weight || flow.waiters.isEmpty()) {
+            ring.pollFirst();
+            flow.served = 0;
+            if (flow.waiters.isEmpty()) {
+                removeIfIdle(flow);
+            } else {
+                ring.addLast(flow);
+            }
+        }
+        return waiter;
+    }
+
+    private void removeIfIdle(Flow flow) {
+        if (flow.id != null && flow.waiters.isEmpty()) {
+            queryFlows.remove(flow.id);
+        }
+    }
+
+    /**
+     * The configuration of the scheduler.
+     *
+     * @param maxConcurrent the maximum number of concurrent executions of the underlying service or zero for no limit
+     * @param maxQueueSize  the maximum number of waiting executions
+     * @param refreshWeight the number of cache refreshes served per round of all waiting structured queries
+     */
+    public record Config(int maxConcurrent, int maxQueueSize, int refreshWeight) {
+
+        public Config {
+            if (maxConcurrent < 0) {
+                throw new IllegalArgumentException("The maximum number of concurrent executions must not be negative.");
+            }
+            if (maxQueueSize < 0) {
+                throw new IllegalArgumentException("The maximum queue size must not be negative.");
+            }
+            if (refreshWeight < 0) {
+                throw new IllegalArgumentException("The refresh weight must not be negative.");
+            }
+        }
+    }
+
+    private static final class Flow {
+
+        private final UUID id;
+        private final int weight;
+        private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+        private int served;
+
+        private Flow(UUID id, int weight) {
+            this.id = id;
+            this.weight = weight;
+        }
+    }
+
+    private final class Waiter {
+
+        private final Query query;
+        private final MonoSink<Permit> sink;
+        private final Permit permit = new Permit();
+
+        /**
+         * Whether this waiter got the permit. Only accessed while holding the lock of the scheduler.
+         */
+        private boolean granted;
+
+        /**
+         * The flow this waiter waits in. Only accessed while holding the lock of the scheduler.
+         */
+        private Flow flow;
+
+        private Waiter(Query query, MonoSink<Permit> sink) {
+            this.query = query;
+            this.sink = sink;
+        }
+
+        private void grant() {
+            sink.success(permit);
+        }
+
+        private void reject() {
+            sink.error(new AdmissionRejectedException("Too many FHIR queries are waiting to be executed."));
+        }
+    }
+
+    private final class Permit {
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                SchedulingFhirQueryService.this.release();
+            }
+        }
+    }
+}
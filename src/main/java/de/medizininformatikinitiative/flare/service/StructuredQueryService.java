@@ -2,6 +2,7 @@ package de.medizininformatikinitiative.flare.service;
 
 import de.medizininformatikinitiative.flare.Either;
 import de.medizininformatikinitiative.flare.model.Population;
+import de.medizininformatikinitiative.flare.model.fhir.Query;
 import de.medizininformatikinitiative.flare.model.sq.Criterion;
 import de.medizininformatikinitiative.flare.model.sq.CriterionGroup;
 import de.medizininformatikinitiative.flare.model.sq.StructuredQuery;
@@ -15,7 +16,11 @@ import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static de.medizininformatikinitiative.flare.model.translate.Operator.Name.UNION;
 import static java.util.Objects.requireNonNull;
@@ -27,16 +32,21 @@ public class StructuredQueryService {
 
     private final FhirQueryService fhirQueryService;
     private final Translator translator;
+    private final GroupCache groupCache;
 
     public StructuredQueryService(@Qualifier("memCachingFhirQueryService") FhirQueryService fhirQueryService,
-                                  Translator translator) {
+                                  Translator translator, GroupCache groupCache) {
         this.fhirQueryService = requireNonNull(fhirQueryService);
         this.translator = requireNonNull(translator);
+        this.groupCache = requireNonNull(groupCache);
     }
 
 
     /**
      * Executes {@code query} and returns the Population of Patient IDs.
+     * <p>
+     * The remaining inclusion criteria are cancelled as soon as their intersection is empty and the exclusion criteria
+     * are only executed if the inclusion criteria select any patient.
      *
      * @param id the ID of the query used for tracing purposes
      * @param query the query to execute
@@ -50,12 +60,66 @@ public class StructuredQueryService {
                         .defaultIfEmpty(Population.of()))
                 .orElse(Mono.just(Population.of()));
         return includedPatients
-                .flatMap(i -> excludedPatients.map(i::difference));
+                .flatMap(i -> i.isEmpty() ? Mono.just(i) : excludedPatients.map(i::difference));
     }
 
 
+    /**
+     * Executes {@code query} and returns only the number of Patient IDs.
+     * <p>
+     * The subtraction of the exclusion criteria from the intersection of the inclusion criteria is counted without
+     * creating the resulting Population. The remaining inclusion criteria are cancelled as soon as their intersection
+     * is empty and the exclusion criteria are only executed if it isn't.
+     *
+     * @param id the ID of the query used for tracing purposes
+     * @param query the query to execute
+     * @return the number of Patient IDs qualifying the criteria
+     */
+    public Mono<Integer> executeCount(UUID id, StructuredQuery query) {
+        var includedPatients = query.inclusionCriteria()
+                .executeAndIntersection(group -> executeUnionGroup(id, group));
+        var excludedPatients = query.exclusionCriteria().map(c -> c.map(CriterionGroup::wrapCriteria)
+                        .executeAndCollect(group -> group.executeAndIntersection(group1 -> executeUnionGroup(id, group1)))
+                        .defaultIfEmpty(List.of()))
+                .orElse(Mono.just(List.of()));
+        return includedPatients
+                .flatMap(i -> i.isEmpty()
+                        ? Mono.just(0)
+                        : excludedPatients.map(e -> Population.intersectionDifferenceSize(List.of(i), e)))
+                .defaultIfEmpty(0);
+    }
+
     private Mono<Population> executeUnionGroup(UUID id, CriterionGroup<Criterion> group) {
-        return group.executeAndUnion(criterion -> executeSingle(id, criterion));
+        if (!groupCache.enabled()) {
+            return group.executeAndUnion(criterion -> executeSingle(id, criterion));
+        }
+        return toQueries(group).either(Mono::error, queries -> groupCache.execute(queries, qs -> executeUnion(id, qs)));
+    }
+
+    private Mono<Population> executeUnion(UUID id, Set<Query> queries) {
+        return Flux.fromIterable(queries)
+                .flatMap(query -> fhirQueryService.execute(id, query))
+                .collectList()
+                .filter(results -> !results.isEmpty())
+                .map(Population::unionAll);
+    }
+
+    /**
+     * Translates all criteria of {@code group} and returns the set of all resulting queries.
+     */
+    private Either<Exception, Set<Query>> toQueries(CriterionGroup<Criterion> group) {
+        return Stream.concat(Stream.of(group.firstCriterion()), group.moreCriteria().stream())
+                .map(translator::toQuery)
+                .reduce(Either.right(Set.of()), Either.lift2(StructuredQueryService::add),
+                        Either.liftBinOp(StructuredQueryService::union));
+    }
+
+    private static Set<Query> add(Set<Query> a, List<Query> b) {
+        return Stream.concat(a.stream(), b.stream()).collect(Collectors.toUnmodifiableSet());
+    }
+
+    private static Set<Query> union(Set<Query> a, Set<Query> b) {
+        return Stream.concat(a.stream(), b.stream()).collect(Collectors.toUnmodifiableSet());
     }
 
     private Flux<Population> executeSingle(UUID id, Criterion criterion) {
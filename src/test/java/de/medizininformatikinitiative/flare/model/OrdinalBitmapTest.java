@@ -0,0 +1,161 @@
+package de.medizininformatikinitiative.flare.model;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OrdinalBitmapTest {
+
+    @Test
+    void of_empty() {
+        var bitmap = OrdinalBitmap.of(new int[0], 0);
+
+        assertThat(bitmap.cardinality()).isZero();
+        assertThat(bitmap.toArray()).isEmpty();
+        assertThat(bitmap.iterator().hasNext()).isFalse();
+    }
+
+    @ParameterizedTest
+    @MethodSource("ordinalsArgumentProvider")
+    void of(int[] ordinals) {
+        var bitmap = bitmap(ordinals);
+
+        assertThat(bitmap.cardinality()).isEqualTo(ordinals.length);
+        assertThat(bitmap.toArray()).containsExactly(ordinals);
+        assertThat(bitmap.first()).isEqualTo(ordinals[0]);
+        assertThat(bitmap.last()).isEqualTo(ordinals[ordinals.length - 1]);
+        assertThat(IntStream.of(ordinals)).allMatch(bitmap::contains);
+    }
+
+    @Test
+    void iterator() {
+        var ordinals = randomOrdinals(10_000, 200_000, 1);
+
+        var iterator = bitmap(ordinals).iterator();
+
+        assertThat(IntStream.generate(iterator::nextInt).limit(ordinals.length)).containsExactly(ordinals);
+        assertThat(iterator.hasNext()).isFalse();
+    }
+
+    @Test
+    void contains_missing() {
+        var bitmap = bitmap(IntStream.range(0, 100_000).filter(i -> i % 2 == 0).toArray());
+
+        assertThat(IntStream.range(0, 100_000).filter(i -> i % 2 == 1)).noneMatch(bitmap::contains);
+        assertThat(bitmap.contains(1 << 20)).isFalse();
+    }
+
+    @Test
+    @DisplayName("consecutive ordinals are stored as runs")
+    void memSize_runs() {
+        var bitmap = bitmap(IntStream.range(0, 1_000_000).toArray());
+
+        assertThat(bitmap.memSize()).isLessThan(1_000);
+    }
+
+    @Test
+    @DisplayName("ordinals with a density of one in two are stored as bitmap")
+    void memSize_bitmap() {
+        var bitmap = bitmap(IntStream.range(0, 1 << 20).filter(i -> i % 2 == 0).toArray());
+
+        assertThat(bitmap.memSize()).isBetween(16 * 8192, 17 * 8192);
+    }
+
+    @ParameterizedTest
+    @MethodSource("ordinalsPairArgumentProvider")
+    void and(int[] ordinals1, int[] ordinals2) {
+        var result = bitmap(ordinals1).and(bitmap(ordinals2));
+
+        var expected = bitSet(ordinals1);
+        expected.and(bitSet(ordinals2));
+        assertThat(result.toArray()).containsExactly(expected.stream().toArray());
+    }
+
+    @ParameterizedTest
+    @MethodSource("ordinalsPairArgumentProvider")
+    void or(int[] ordinals1, int[] ordinals2) {
+        var result = bitmap(ordinals1).or(bitmap(ordinals2));
+
+        var expected = bitSet(ordinals1);
+        expected.or(bitSet(ordinals2));
+        assertThat(result.toArray()).containsExactly(expected.stream().toArray());
+    }
+
+    @ParameterizedTest
+    @MethodSource("ordinalsPairArgumentProvider")
+    void andNot(int[] ordinals1, int[] ordinals2) {
+        var result = bitmap(ordinals1).andNot(bitmap(ordinals2));
+
+        var expected = bitSet(ordinals1);
+        expected.andNot(bitSet(ordinals2));
+        assertThat(result.toArray()).containsExactly(expected.stream().toArray());
+    }
+
+    @Test
+    @DisplayName("bitmaps with the same ordinals are equal independent of their container types")
+    void equals() {
+        var ordinals = IntStream.range(0, 10_000).toArray();
+        var bitmap = bitmap(ordinals).or(bitmap(IntStream.range(0, 20_000).filter(i -> i % 2 == 0).toArray()))
+                .andNot(bitmap(IntStream.range(10_000, 20_000).toArray()));
+
+        assertThat(bitmap).isEqualTo(bitmap(ordinals)).hasSameHashCodeAs(bitmap(ordinals));
+    }
+
+    @ParameterizedTest
+    @MethodSource("ordinalsArgumentProvider")
+    @DisplayName("bitmaps with the same cardinality but different ordinals are not equal")
+    void equals_differentOrdinals(int[] ordinals) {
+        var last = ordinals[ordinals.length - 1];
+        var other = ordinals.clone();
+        other[other.length - 1] = last + 1;
+
+        assertThat(bitmap(ordinals)).isEqualTo(bitmap(ordinals.clone())).isNotEqualTo(bitmap(other));
+    }
+
+    private static OrdinalBitmap bitmap(int[] ordinals) {
+        return OrdinalBitmap.of(ordinals, ordinals.length);
+    }
+
+    private static BitSet bitSet(int[] ordinals) {
+        var bitSet = new BitSet();
+        IntStream.of(ordinals).forEach(bitSet::set);
+        return bitSet;
+    }
+
+    /**
+     * Returns sorted, distinct ordinals below {@code bound} using the given {@code seed}.
+     */
+    private static int[] randomOrdinals(int n, int bound, long seed) {
+        return new Random(seed).ints(n, 0, bound).sorted().distinct().toArray();
+    }
+
+    private static List<int[]> ordinals() {
+        return List.of(new int[]{0}, new int[]{65535, 65536}, randomOrdinals(100, 1_000_000, 1),
+                randomOrdinals(5_000, 70_000, 2), randomOrdinals(50_000, 200_000, 3),
+                IntStream.range(30_000, 140_000).toArray(), IntStream.range(0, 140_000).filter(i -> i % 3 != 0).toArray());
+    }
+
+    private static Stream<Arguments> ordinalsArgumentProvider() {
+        return ordinals().stream().map(ordinals -> Arguments.of((Object) ordinals));
+    }
+
+    private static Stream<Arguments> ordinalsPairArgumentProvider() {
+        Stream.Builder<Arguments> argumentBuilder = Stream.builder();
+        for (int[] ordinals1 : ordinals()) {
+            for (int[] ordinals2 : ordinals()) {
+                argumentBuilder.add(Arguments.of(ordinals1, ordinals2));
+            }
+        }
+        return argumentBuilder.build();
+    }
+}
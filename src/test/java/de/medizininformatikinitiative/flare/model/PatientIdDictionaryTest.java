@@ -0,0 +1,206 @@
+package de.medizininformatikinitiative.flare.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PatientIdDictionaryTest {
+
+    static final String PATIENT_ID_1 = "patient-id-1-152512";
+    static final String PATIENT_ID_2 = "patient-id-2-152518";
+
+    private final PatientIdDictionary dictionary = new PatientIdDictionary();
+
+    @Test
+    void ordinal_samePatientId() {
+        var ordinal = dictionary.ordinal(PATIENT_ID_1);
+
+        assertThat(dictionary.ordinal(new String(PATIENT_ID_1))).isEqualTo(ordinal);
+        assertThat(dictionary.size()).isOne();
+    }
+
+    @Test
+    void ordinal_differentPatientIds() {
+        var ordinal1 = dictionary.ordinal(PATIENT_ID_1);
+        var ordinal2 = dictionary.ordinal(PATIENT_ID_2);
+
+        assertThat(ordinal1).isZero();
+        assertThat(ordinal2).isOne();
+    }
+
+    @Test
+    void ordinal_bytes_knownPatientId() {
+        var ordinal = dictionary.ordinal(PATIENT_ID_1);
+        var bytes = (PATIENT_ID_1 + "-suffix").getBytes(US_ASCII);
+
+        assertThat(dictionary.ordinal(bytes, PATIENT_ID_1.length())).isEqualTo(ordinal);
+        assertThat(dictionary.size()).isOne();
+    }
+
+    @Test
+    void ordinal_bytes_unknownPatientId() {
+        var ordinal = dictionary.ordinal(PATIENT_ID_1.getBytes(US_ASCII), PATIENT_ID_1.length());
+
+        assertThat(dictionary.ordinal(PATIENT_ID_1)).isEqualTo(ordinal);
+        assertThat(dictionary.patientId(ordinal)).isEqualTo(PATIENT_ID_1);
+    }
+
+    @Test
+    void ordinal_null() {
+        assertThatThrownBy(() -> dictionary.ordinal(null)).isInstanceOf(NullPointerException.class);
+    }
+
+    @Test
+    void ordinalIfPresent() {
+        var ordinal = dictionary.ordinal(PATIENT_ID_1);
+
+        assertThat(dictionary.ordinalIfPresent(PATIENT_ID_1)).isEqualTo(ordinal);
+        assertThat(dictionary.ordinalIfPresent(PATIENT_ID_2)).isEqualTo(-1);
+        assertThat(dictionary.size()).isOne();
+    }
+
+    @Test
+    void patientId() {
+        var ordinal = dictionary.ordinal(PATIENT_ID_1);
+
+        assertThat(dictionary.patientId(ordinal)).isEqualTo(PATIENT_ID_1);
+    }
+
+    @Test
+    void memSize_empty() {
+        assertThat(dictionary.memSize()).isEqualTo(32 + 16 * 8);
+    }
+
+    @Test
+    void memSize_grows() {
+        var emptySize = dictionary.memSize();
+        dictionary.ordinal(PATIENT_ID_1);
+        var oneSize = dictionary.memSize();
+        dictionary.ordinal(PATIENT_ID_2);
+
+        assertThat(oneSize).isGreaterThan(emptySize + (1 << 18));
+        assertThat(dictionary.memSize() - oneSize).isEqualTo(112 + PATIENT_ID_2.length());
+    }
+
+    @Test
+    void ordinal_concurrentStringsAndBytes() {
+        var ordinals = IntStream.range(0, 400_000).parallel().map(i -> {
+            var patientId = "patient-" + (i % 100_000);
+            return i % 2 == 0 ? dictionary.ordinal(patientId)
+                    : dictionary.ordinal(patientId.getBytes(US_ASCII), patientId.length());
+        }).toArray();
+
+        assertThat(dictionary.size()).isEqualTo(100_000);
+        assertThat(IntStream.range(0, ordinals.length))
+                .allMatch(i -> ordinals[i] == ordinals[i % 100_000]
+                        && dictionary.patientId(ordinals[i]).equals("patient-" + (i % 100_000)));
+    }
+
+    @Test
+    void reclaim_keepsPatientIdsOfPreviousEpoch() {
+        dictionary.ordinal(PATIENT_ID_1);
+
+        assertThat(dictionary.reclaim(consumer -> {})).isZero();
+        assertThat(dictionary.size()).isOne();
+    }
+
+    @Test
+    void reclaim_unused() {
+        dictionary.ordinal(PATIENT_ID_1);
+        dictionary.reclaim(consumer -> {});
+
+        assertThat(dictionary.reclaim(consumer -> {})).isOne();
+        assertThat(dictionary.size()).isZero();
+        assertThat(dictionary.ordinalIfPresent(PATIENT_ID_1)).isEqualTo(-1);
+        assertThat(dictionary.memSize()).isEqualTo(32 + 16 * 8);
+    }
+
+    @Test
+    void reclaim_referenced() {
+        var ordinal = dictionary.ordinal(PATIENT_ID_1);
+        dictionary.reclaim(consumer -> consumer.accept(ordinal));
+
+        assertThat(dictionary.reclaim(consumer -> consumer.accept(ordinal))).isZero();
+        assertThat(dictionary.patientId(ordinal)).isEqualTo(PATIENT_ID_1);
+    }
+
+    @Test
+    void reclaim_usedSincePreviousReclaim() {
+        var ordinal = dictionary.ordinal(PATIENT_ID_1);
+        dictionary.reclaim(consumer -> {});
+        var bytes = PATIENT_ID_1.getBytes(US_ASCII);
+
+        assertThat(dictionary.ordinal(bytes, bytes.length)).isEqualTo(ordinal);
+        assertThat(dictionary.reclaim(consumer -> {})).isZero();
+        assertThat(dictionary.patientId(ordinal)).isEqualTo(PATIENT_ID_1);
+    }
+
+    @Test
+    void reclaim_reusesOrdinal() {
+        var ordinal = dictionary.ordinal(PATIENT_ID_1);
+        dictionary.reclaim(consumer -> {});
+        dictionary.reclaim(consumer -> {});
+
+        var newOrdinal = dictionary.ordinal(PATIENT_ID_2);
+
+        assertThat(newOrdinal).isEqualTo(ordinal);
+        assertThat(dictionary.patientId(newOrdinal)).isEqualTo(PATIENT_ID_2);
+        assertThat(dictionary.ordinalIfPresent(PATIENT_ID_1)).isEqualTo(-1);
+        assertThat(dictionary.size()).isOne();
+    }
+
+    @Test
+    void reclaim_reusesLowestFreeOrdinal() {
+        var ordinals = IntStream.range(0, 4).map(i -> dictionary.ordinal("patient-" + i)).toArray();
+        dictionary.reclaim(consumer -> consumer.accept(ordinals[2]));
+        dictionary.reclaim(consumer -> consumer.accept(ordinals[2]));
+
+        assertThat(dictionary.ordinal(PATIENT_ID_1)).isZero();
+        assertThat(dictionary.ordinal(PATIENT_ID_2)).isOne();
+        assertThat(dictionary.ordinal("patient-3")).isEqualTo(3);
+        assertThat(dictionary.patientId(ordinals[2])).isEqualTo("patient-2");
+    }
+
+    @Test
+    void reclaim_releasesEmptyChunks() {
+        var ordinals = IntStream.range(0, 200_000).map(i -> dictionary.ordinal("patient-" + i)).toArray();
+        var memSize = dictionary.memSize();
+        dictionary.reclaim(consumer -> consumer.accept(ordinals[0]));
+        dictionary.reclaim(consumer -> consumer.accept(ordinals[0]));
+
+        assertThat(dictionary.size()).isOne();
+        assertThat(memSize - dictionary.memSize()).isGreaterThan(3L * 2 * (1 << 18));
+        assertThat(dictionary.ordinal(PATIENT_ID_1)).isOne();
+    }
+
+    @Test
+    void reclaim_concurrentLookups() {
+        IntStream.range(0, 100_000).forEach(i -> dictionary.ordinal("patient-" + i));
+        dictionary.reclaim(consumer -> {});
+
+        var lookups = CompletableFuture.supplyAsync(() -> IntStream.range(0, 100_000).parallel()
+                .map(i -> dictionary.ordinal("patient-" + i)).toArray());
+        dictionary.reclaim(consumer -> {});
+        var result = lookups.join();
+
+        assertThat(dictionary.size()).isEqualTo(100_000);
+        assertThat(IntStream.range(0, result.length))
+                .allMatch(i -> dictionary.patientId(result[i]).equals("patient-" + i)
+                        && dictionary.ordinalIfPresent("patient-" + i) == result[i]);
+    }
+
+    @Test
+    void patientId_manyChunks() {
+        var ordinals = IntStream.range(0, 200_000).parallel().map(i -> dictionary.ordinal("patient-" + i)).toArray();
+
+        assertThat(dictionary.size()).isEqualTo(200_000);
+        assertThat(IntStream.range(0, ordinals.length))
+                .allMatch(i -> dictionary.patientId(ordinals[i]).equals("patient-" + i));
+        assertThat(IntStream.of(ordinals).distinct().count()).isEqualTo(200_000);
+    }
+}
@@ -8,12 +8,15 @@ import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.testcontainers.shaded.com.google.common.hash.Hashing;
 
+import java.nio.ByteBuffer;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import static java.nio.charset.StandardCharsets.US_ASCII;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -74,6 +77,75 @@ class PopulationTest {
         assertThat(population).doesNotHaveDuplicates().hasSameElementsAs(patientIds);
     }
 
+    @Test
+    void builder_empty() {
+        var population = Population.builder().build();
+
+        assertThat(population).isEmpty();
+    }
+
+    @Test
+    void builder_duplicates() {
+        var population = Population.builder().add(PATIENT_ID_1).add(PATIENT_ID_1).add(PATIENT_ID_2).add(PATIENT_ID_1)
+                .build();
+
+        assertThat(population).containsExactlyInAnyOrder(PATIENT_ID_1, PATIENT_ID_2);
+    }
+
+    @ParameterizedTest
+    @MethodSource("patientIdsArgumentProvider")
+    @DisplayName("adding the patient ids in pages results in the same population as copyOf")
+    void builder_pages(List<String> patientIds) {
+        var builder = Population.builder();
+        for (int i = 0; i < patientIds.size(); i += 10) {
+            var page = patientIds.subList(i, Math.min(i + 10, patientIds.size()));
+            builder.addAll(page).addAll(page.subList(0, page.size() / 2));
+        }
+
+        assertThat(builder.build()).isEqualTo(Population.copyOf(patientIds));
+    }
+
+    @Test
+    void builder_buildTwice() {
+        var builder = Population.builder().add(PATIENT_ID);
+        builder.build();
+
+        assertThatThrownBy(builder::build).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> builder.add(PATIENT_ID)).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void contains() {
+        var population = Population.of(PATIENT_ID_1, PATIENT_ID_2);
+
+        assertThat(population.contains(PATIENT_ID_1)).isTrue();
+        assertThat(population.contains(new String(PATIENT_ID_2))).isTrue();
+        assertThat(population.contains(PATIENT_ID)).isFalse();
+        assertThat(population.contains("unknown-patient-id-143012")).isFalse();
+        assertThat(population.contains(null)).isFalse();
+        assertThat(population.contains(1)).isFalse();
+    }
+
+    @Test
+    @DisplayName("contains works before and after the membership index is built")
+    void contains_repeatedly() {
+        var patientIds = patientIdsOfSize(2000);
+        var population = Population.copyOf(patientIds.subList(0, 1000));
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(patientIds.subList(0, 1000)).allMatch(population::contains);
+            assertThat(patientIds.subList(1002, 2000)).noneMatch(population::contains);
+        }
+    }
+
+    @Test
+    void contains_dense() {
+        var population = densePopulation(0, 100_000, 2);
+
+        assertThat(population.contains("dense-patient-id-50000")).isTrue();
+        assertThat(population.contains("dense-patient-id-50001")).isFalse();
+    }
+
     @ParameterizedTest
     @MethodSource("populationArgumentsProvider")
     void intersection(Population population1, Population population2) {
@@ -143,6 +215,204 @@ class PopulationTest {
         assertThat(result.created()).isEqualTo(Instant.EPOCH.plusSeconds(1));
     }
 
+    @ParameterizedTest
+    @MethodSource("densePopulationArgumentsProvider")
+    void intersection_dense(Population population1, Population population2) {
+        var expected = new HashSet<>(population1);
+        expected.retainAll(population2);
+
+        var result = population1.intersection(population2);
+
+        assertThat(result).hasSize(expected.size()).hasSameElementsAs(expected);
+        assertThat(result).isEqualTo(Population.copyOf(expected));
+    }
+
+    @ParameterizedTest
+    @MethodSource("densePopulationArgumentsProvider")
+    void union_dense(Population population1, Population population2) {
+        var expected = new HashSet<>(population1);
+        expected.addAll(population2);
+
+        var result = population1.union(population2);
+
+        assertThat(result).hasSize(expected.size()).hasSameElementsAs(expected);
+        assertThat(result).isEqualTo(Population.copyOf(expected));
+    }
+
+    @ParameterizedTest
+    @MethodSource("densePopulationArgumentsProvider")
+    void difference_dense(Population population1, Population population2) {
+        var expected = new HashSet<>(population1);
+        expected.removeAll(population2);
+
+        var result = population1.difference(population2);
+
+        assertThat(result).hasSize(expected.size()).hasSameElementsAs(expected);
+        assertThat(result).isEqualTo(Population.copyOf(expected));
+    }
+
+    @Test
+    @DisplayName("intersection and difference of populations with very different sizes")
+    void skewedSizes() {
+        var large = Population.copyOf(patientIdsOfSize(20_000));
+        var small = Population.copyOf(List.of(patientIdsOfSize(20_000).get(0), patientIdsOfSize(20_000).get(9_999),
+                "patient-id-skewed-153410"));
+
+        assertThat(large.intersection(small)).containsExactlyInAnyOrderElementsOf(small.intersection(large))
+                .hasSize(2);
+        assertThat(small.difference(large)).containsExactly("patient-id-skewed-153410");
+        assertThat(large.difference(small)).hasSize(9_998).doesNotContainAnyElementsOf(small);
+    }
+
+    @ParameterizedTest
+    @MethodSource("parallelArgumentsProvider")
+    void parallel_intersection(int[] a, int[] b, int partitions) {
+        var expected = IntStream.of(a).filter(value -> Arrays.binarySearch(b, value) >= 0).toArray();
+
+        var result = Population.parallel(a, b, Population::intersection, partitions);
+
+        assertThat(result).isEqualTo(expected);
+        assertThat(Population.intersection(a, 0, a.length, b, 0, b.length)).isEqualTo(expected);
+    }
+
+    @ParameterizedTest
+    @MethodSource("parallelArgumentsProvider")
+    void parallel_union(int[] a, int[] b, int partitions) {
+        var expected = IntStream.concat(IntStream.of(a), IntStream.of(b)).sorted().distinct().toArray();
+
+        var result = Population.parallel(a, b, Population::union, partitions);
+
+        assertThat(result).isEqualTo(expected);
+        assertThat(Population.union(a, 0, a.length, b, 0, b.length)).isEqualTo(expected);
+    }
+
+    @ParameterizedTest
+    @MethodSource("parallelArgumentsProvider")
+    void parallel_difference(int[] a, int[] b, int partitions) {
+        var expected = IntStream.of(a).filter(value -> Arrays.binarySearch(b, value) < 0).toArray();
+
+        var result = Population.parallel(a, b, Population::difference, partitions);
+
+        assertThat(result).isEqualTo(expected);
+        assertThat(Population.difference(a, 0, a.length, b, 0, b.length)).isEqualTo(expected);
+        assertThat(Population.parallel(b, a, Population::difference, partitions))
+                .isEqualTo(IntStream.of(b).filter(value -> Arrays.binarySearch(a, value) < 0).toArray());
+    }
+
+    @ParameterizedTest
+    @MethodSource("densePopulationArgumentsProvider")
+    void intersectionSize(Population population1, Population population2) {
+        var result = population1.intersectionSize(population2);
+
+        assertThat(result).isEqualTo(population1.intersection(population2).size());
+    }
+
+    @ParameterizedTest
+    @MethodSource("densePopulationArgumentsProvider")
+    void differenceSize(Population population1, Population population2) {
+        var result = population1.differenceSize(population2);
+
+        assertThat(result).isEqualTo(population1.difference(population2).size());
+    }
+
+    @Test
+    void intersectionDifferenceSize() {
+        var included = List.of(densePopulation(0, 200_000, 1), densePopulation(0, 150_000, 3),
+                densePopulation(0, 200_000, 5));
+        var excluded = List.of(densePopulation(0, 50_000, 1), densePopulation(0, 200_000, 2));
+
+        var result = Population.intersectionDifferenceSize(included, excluded);
+
+        assertThat(result).isEqualTo(Population.intersectAll(included).difference(Population.unionAll(excluded)).size());
+    }
+
+    @Test
+    void intersectionDifferenceSize_empty() {
+        assertThatThrownBy(() -> Population.intersectionDifferenceSize(List.of(), List.of()))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void unionAll_empty() {
+        assertThat(Population.unionAll(List.of())).isEmpty();
+    }
+
+    @Test
+    void unionAll() {
+        var populations = populations().subList(0, 40);
+        var expected = new HashSet<String>();
+        populations.forEach(expected::addAll);
+
+        var result = Population.unionAll(populations);
+
+        assertThat(result).hasSize(expected.size()).hasSameElementsAs(expected);
+        assertThat(result.created()).isEqualTo(Instant.ofEpochSecond(0));
+    }
+
+    @Test
+    void unionAll_dense() {
+        var populations = List.of(densePopulation(0, 100_000, 1), densePopulation(0, 200_000, 100),
+                densePopulation(150_000, 200_000, 2), Population.of("dense-patient-id-120001"));
+        var expected = new HashSet<String>();
+        populations.forEach(expected::addAll);
+
+        var result = Population.unionAll(populations);
+
+        assertThat(result).isEqualTo(Population.copyOf(expected));
+    }
+
+    @Test
+    void intersectAll_empty() {
+        assertThatThrownBy(() -> Population.intersectAll(List.of()))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void intersectAll() {
+        var populations = List.of(populationOfSize(90), populationOfSize(40), populationOfSize(70));
+        var expected = new HashSet<>(populations.get(0));
+        populations.forEach(expected::retainAll);
+
+        var result = Population.intersectAll(populations);
+
+        assertThat(result).hasSize(expected.size()).hasSameElementsAs(expected);
+        assertThat(result.created()).isEqualTo(Instant.ofEpochSecond(40));
+    }
+
+    @Test
+    void intersectAll_dense() {
+        var populations = List.of(densePopulation(0, 200_000, 1), densePopulation(0, 150_000, 3),
+                densePopulation(0, 200_000, 100), densePopulation(50_000, 200_000, 2));
+        var expected = new HashSet<>(populations.get(0));
+        populations.forEach(expected::retainAll);
+
+        var result = Population.intersectAll(populations);
+
+        assertThat(result).isEqualTo(Population.copyOf(expected));
+    }
+
+    @Test
+    @DisplayName("the hashed membership index doesn't change the size of the population")
+    void memSize_index() {
+        var patientIds = patientIdsOfSize(2_000);
+        var population = Population.copyOf(patientIds);
+        var indexMemSize = population.indexMemSize();
+
+        IntStream.range(0, 64).forEach(i -> population.contains(patientIds.get(i)));
+
+        assertThat(population.memSize()).isEqualTo(68 + population.size() * 4);
+        assertThat(indexMemSize).isZero();
+        assertThat(population.indexMemSize()).isGreaterThan(population.size() * 4);
+    }
+
+    @Test
+    @DisplayName("dense populations need less memory than an array of ordinals")
+    void memSize_dense() {
+        var population = densePopulation(0, 100_000, 1);
+
+        assertThat(population.memSize()).isLessThan(68 + 100_000 * 4);
+    }
+
     @Test
     @DisplayName("populations with different created instants are different")
     void equals_differentCreatedInstants() {
@@ -157,11 +427,11 @@ class PopulationTest {
 
         var byteBuffer = population.toByteBuffer();
 
-        assertEquals(13, byteBuffer.capacity());
-        assertEquals(13, byteBuffer.remaining(), "the buffer is ready to be read");
-        assertEquals(0, byteBuffer.get(), "version byte");
+        assertEquals(10, byteBuffer.capacity());
+        assertEquals(10, byteBuffer.remaining(), "the buffer is ready to be read");
+        assertEquals(1, byteBuffer.get(), "version byte");
         assertEquals(0, byteBuffer.getLong(), "created instance");
-        assertEquals(0, byteBuffer.getInt(), "size");
+        assertEquals(0, byteBuffer.get(), "size");
     }
 
     @Test
@@ -170,17 +440,124 @@ class PopulationTest {
 
         var byteBuffer = population.toByteBuffer();
 
-        assertEquals(14 + PATIENT_ID.length(), byteBuffer.capacity());
-        assertEquals(14 + PATIENT_ID.length(), byteBuffer.remaining(), "the buffer is ready to be read");
-        assertEquals(0, byteBuffer.get(), "version byte");
+        assertEquals(12 + PATIENT_ID.length(), byteBuffer.capacity());
+        assertEquals(12 + PATIENT_ID.length(), byteBuffer.remaining(), "the buffer is ready to be read");
+        assertEquals(1, byteBuffer.get(), "version byte");
         assertEquals(0, byteBuffer.getLong(), "created instance");
-        assertEquals(1, byteBuffer.getInt(), "size");
-        assertEquals(PATIENT_ID.length(), byteBuffer.get(), "patient id length");
+        assertEquals(1, byteBuffer.get(), "size");
+        assertEquals(0, byteBuffer.get(), "prefix length");
+        assertEquals(PATIENT_ID.length(), byteBuffer.get(), "suffix length");
         assertEquals('p', byteBuffer.get(), "first patient id byte");
         assertEquals('a', byteBuffer.get(), "second patient id byte");
         assertEquals('t', byteBuffer.get(), "third patient id byte");
     }
 
+    @Test
+    @DisplayName("the second patient id shares its prefix with the first one")
+    void toByteBuffer_two_patientIds() {
+        var population = Population.of(PATIENT_ID_2, PATIENT_ID_1);
+
+        var byteBuffer = population.toByteBuffer();
+
+        assertEquals(1, byteBuffer.get(), "version byte");
+        assertEquals(0, byteBuffer.getLong(), "created instance");
+        assertEquals(2, byteBuffer.get(), "size");
+        assertEquals(0, byteBuffer.get(), "prefix length of the first patient id");
+        assertEquals(PATIENT_ID_1.length(), byteBuffer.get(), "suffix length of the first patient id");
+        byteBuffer.position(byteBuffer.position() + PATIENT_ID_1.length());
+        assertEquals("patient-id-".length(), byteBuffer.get(), "prefix length of the second patient id");
+        assertEquals(PATIENT_ID_2.length() - "patient-id-".length(), byteBuffer.get(),
+                "suffix length of the second patient id");
+        assertEquals('2', byteBuffer.get(), "first suffix byte of the second patient id");
+    }
+
+    @Test
+    void fromByteBuffer_version0() throws SerializerException {
+        var byteBuffer = ByteBuffer.allocate(14 + PATIENT_ID.length());
+        byteBuffer.put((byte) 0);
+        byteBuffer.putLong(1);
+        byteBuffer.putInt(1);
+        byteBuffer.put((byte) PATIENT_ID.length());
+        byteBuffer.put(PATIENT_ID.getBytes(US_ASCII));
+
+        var population = Population.fromByteBuffer(byteBuffer.flip());
+
+        assertEquals(Population.of(PATIENT_ID).withCreated(Instant.ofEpochSecond(1)), population);
+    }
+
+    @Test
+    void fromByteBuffer_unsupportedVersion() {
+        var byteBuffer = ByteBuffer.wrap(new byte[]{2});
+
+        assertThatThrownBy(() -> Population.fromByteBuffer(byteBuffer))
+                .isInstanceOf(SerializerException.class)
+                .hasMessage("Can't deserialize because version 2 isn't supported.");
+    }
+
+    @Test
+    void fromByteBuffer_truncated() {
+        var byteBuffer = Population.of(PATIENT_ID).toByteBuffer();
+
+        assertThatThrownBy(() -> Population.fromByteBuffer(byteBuffer.limit(byteBuffer.limit() - 1)))
+                .isInstanceOf(SerializerException.class)
+                .hasMessage("Can't deserialize because the byte buffer is truncated.");
+    }
+
+    @Test
+    void toOffHeapBuffer_roundTrip() throws SerializerException {
+        var population = Population.of(PATIENT_ID_1, PATIENT_ID_2).withCreated(Instant.ofEpochSecond(1, 2));
+
+        var byteBuffer = population.toOffHeapBuffer();
+
+        assertThat(byteBuffer.isDirect()).isTrue();
+        assertEquals(population, Population.fromOffHeapBuffer(byteBuffer));
+        assertEquals(0, byteBuffer.position(), "the buffer position is unchanged");
+    }
+
+    @Test
+    void toOffHeapBuffer_roundTrip_dense() throws SerializerException {
+        var population = densePopulation(50_000, 150_000, 2);
+
+        var byteBuffer = population.toOffHeapBuffer();
+
+        assertEquals(population, Population.fromOffHeapBuffer(byteBuffer));
+    }
+
+    @Test
+    void fromOffHeapBuffer_truncated() {
+        var byteBuffer = Population.of(PATIENT_ID).toOffHeapBuffer();
+
+        assertThatThrownBy(() -> Population.fromOffHeapBuffer(byteBuffer.limit(byteBuffer.limit() - 1)))
+                .isInstanceOf(SerializerException.class);
+    }
+
+    @Test
+    void reclaimPatientIds_keepsReachablePopulation() {
+        var patientIds = IntStream.range(0, 1000).mapToObj("patient-id-reachable-%d"::formatted).toList();
+        var population = Population.copyOf(patientIds);
+        Population.reclaimPatientIds(Stream.empty());
+        Population.reclaimPatientIds(Stream.empty());
+
+        var newPopulation = Population.copyOf(IntStream.range(0, 1000).mapToObj("patient-id-new-%d"::formatted)
+                .toList());
+
+        assertThat(population).containsExactlyInAnyOrderElementsOf(patientIds);
+        assertThat(population.intersection(newPopulation)).isEmpty();
+    }
+
+    @Test
+    void reclaimPatientIds_keepsOffHeapBuffers() throws SerializerException {
+        var patientIds = IntStream.range(0, 1000).mapToObj("patient-id-off-heap-%d"::formatted).toList();
+        var byteBuffer = Population.copyOf(patientIds).toOffHeapBuffer();
+        System.gc();
+        Population.reclaimPatientIds(Stream.of(byteBuffer));
+        Population.reclaimPatientIds(Stream.of(byteBuffer));
+
+        Population.copyOf(IntStream.range(0, 1000).mapToObj("patient-id-new-off-heap-%d"::formatted).toList());
+
+        assertThat(Population.fromOffHeapBuffer(byteBuffer)).containsExactlyInAnyOrderElementsOf(patientIds);
+    }
+
     @ParameterizedTest
     @MethodSource("provideCacheValues")
     void byteBuffer_roundTrip(Population population) throws SerializerException {
@@ -225,6 +602,56 @@ class PopulationTest {
         return IntStream.range(0, 100).mapToObj(PopulationTest::patientIdsOfSize);
     }
 
+    /**
+     * Returns a population of the patient ids from {@code start} to {@code end} with the given {@code step}.
+     * <p>
+     * All patient ids are created in ascending order first, so that they get consecutive ordinals.
+     */
+    private static Population densePopulation(int start, int end, int step) {
+        return Population.copyOf(IntStream.range(0, 200_000).mapToObj(i -> "dense-patient-id-" + i).toList()
+                .subList(start, end).stream().filter(id -> Integer.parseInt(id.substring(17)) % step == 0).toList());
+    }
+
+    private static Stream<Arguments> densePopulationArgumentsProvider() {
+        var populations = List.of(Population.of(), Population.of("dense-patient-id-50000"),
+                densePopulation(0, 200_000, 1), densePopulation(0, 100_000, 1), densePopulation(50_000, 150_000, 2),
+                densePopulation(100_000, 200_000, 7), densePopulation(0, 200_000, 100), densePopulation(0, 200_000, 20_000));
+        Stream.Builder<Arguments> argumentBuilder = Stream.builder();
+        for (Population p1 : populations) {
+            for (Population p2 : populations) {
+                argumentBuilder.add(Arguments.of(p1, p2));
+            }
+        }
+        return argumentBuilder.build();
+    }
+
+    /**
+     * Returns pairs of sorted ordinal arrays with a combined size above the parallel threshold of 2^18 together with
+     * the number of partitions to split them into.
+     */
+    private static Stream<Arguments> parallelArgumentsProvider() {
+        var evens = IntStream.range(0, 300_000).map(i -> 2 * i).toArray();
+        var multiplesOfThree = IntStream.range(0, 200_000).map(i -> 3 * i).toArray();
+        var dense = IntStream.range(0, 300_000).toArray();
+        var lowCluster = IntStream.range(0, 20_000).toArray();
+        var highCluster = IntStream.range(580_000, 600_000).toArray();
+        var sparse = IntStream.range(0, 5_000).map(i -> 64 * i).toArray();
+        Stream.Builder<Arguments> argumentBuilder = Stream.builder();
+        for (int partitions : new int[]{2, 7, 64}) {
+            // partial overlap with pivots present in both arrays
+            argumentBuilder.add(Arguments.of(evens, multiplesOfThree, partitions));
+            // all pivots are duplicate boundary values
+            argumentBuilder.add(Arguments.of(dense, dense.clone(), partitions));
+            // skewed splits: all values of one array fall into the first or the last partition
+            argumentBuilder.add(Arguments.of(dense, lowCluster, partitions));
+            argumentBuilder.add(Arguments.of(evens, highCluster, partitions));
+            // partitions of very different sizes are processed by galloping
+            argumentBuilder.add(Arguments.of(evens, sparse, partitions));
+            argumentBuilder.add(Arguments.of(dense, new int[0], partitions));
+        }
+        return argumentBuilder.build();
+    }
+
     private static List<Population> populations() {
         return IntStream.range(0, 100).mapToObj(PopulationTest::populationOfSize).toList();
     }
@@ -0,0 +1,91 @@
+package de.medizininformatikinitiative.flare.model.fhir;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BundleTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void deserialize_empty() throws JsonProcessingException {
+        var bundle = mapper.readValue("{}", Bundle.class);
+
+        assertThat(bundle.patientIds()).isEmpty();
+        assertThat(bundle.nextPageUrl()).isEmpty();
+        assertThat(bundle.knownTotal()).isEmpty();
+    }
+
+    @Test
+    void deserialize_total() throws JsonProcessingException {
+        var bundle = mapper.readValue("""
+                {"resourceType": "Bundle", "type": "searchset", "total": 152311}
+                """, Bundle.class);
+
+        assertThat(bundle.knownTotal()).contains(152311);
+    }
+
+    @Test
+    void deserialize_nextLink() throws JsonProcessingException {
+        var bundle = mapper.readValue("""
+                {"resourceType": "Bundle",
+                 "link": [{"relation": "self", "url": "self-url-151812"},
+                          {"relation": "next", "url": "next-url-151817"}]}
+                """, Bundle.class);
+
+        assertThat(bundle.nextPageUrl()).contains("next-url-151817");
+    }
+
+    @Test
+    void deserialize_subjectReference() throws JsonProcessingException {
+        var bundle = mapper.readValue("""
+                {"entry": [{"fullUrl": "full-url-152007",
+                            "resource": {"resourceType": "Observation", "id": "id-152013",
+                                         "subject": {"reference": "Patient/patient-id-152019", "display": "foo"},
+                                         "meta": {"tag": [{"code": "bar"}]}},
+                            "search": {"mode": "match"}}]}
+                """, Bundle.class);
+
+        assertThat(bundle.patientIds()).containsExactly("patient-id-152019");
+    }
+
+    @Test
+    void deserialize_patientReferenceBeforeSubject() throws JsonProcessingException {
+        var bundle = mapper.readValue("""
+                {"entry": [{"resource": {"resourceType": "Consent", "id": "id-152125",
+                                         "subject": {"reference": "Patient/patient-id-152130"},
+                                         "patient": {"reference": "Patient/patient-id-152135"}}}]}
+                """, Bundle.class);
+
+        assertThat(bundle.patientIds()).containsExactly("patient-id-152135");
+    }
+
+    @Test
+    void deserialize_patientResource() throws JsonProcessingException {
+        var bundle = mapper.readValue("""
+                {"entry": [{"resource": {"resourceType": "Patient", "id": "patient-id-152240"}},
+                           {"resource": {"resourceType": "Patient", "id": "patient-id-152245"}}]}
+                """, Bundle.class);
+
+        assertThat(bundle.patientIds()).containsExactly("patient-id-152240", "patient-id-152245");
+    }
+
+    @Test
+    void deserialize_referenceWithoutReference() throws JsonProcessingException {
+        var bundle = mapper.readValue("""
+                {"entry": [{"resource": {"resourceType": "Observation", "id": "id-152401", "subject": {}}}]}
+                """, Bundle.class);
+
+        assertThat(bundle.patientIds()).isEmpty();
+    }
+
+    @Test
+    void deserialize_array() {
+        assertThatThrownBy(() -> mapper.readValue("[]", Bundle.class))
+                .isInstanceOf(JsonProcessingException.class);
+    }
+}
@@ -24,4 +24,58 @@ class QueryTest {
 
         assertThat(s).isEqualTo("Condition?name-152643=value-152647");
     }
+
+    @Test
+    void toReverseChained() {
+        var query = new Query("Condition", QueryParams.of("code", stringValue("code-112012")));
+
+        var reverseChained = query.toReverseChained("subject");
+
+        assertThat(reverseChained).map(Query::toString).contains("Patient?_has:Condition:subject:code=code-112012");
+    }
+
+    @Test
+    void toReverseChained_twoParams() {
+        var query = new Query("Observation", QueryParams.of("code", stringValue("code-112107"))
+                .appendParam("value-quantity", stringValue("gt1")));
+
+        var reverseChained = query.toReverseChained("subject");
+
+        assertThat(reverseChained).isEmpty();
+    }
+
+    @Test
+    void toReverseChained_modifier() {
+        var query = new Query("Condition", QueryParams.of("code:below", stringValue("code-112140")));
+
+        var reverseChained = query.toReverseChained("subject");
+
+        assertThat(reverseChained).isEmpty();
+    }
+
+    @Test
+    void broaderQueries() {
+        var query = new Query("Observation", QueryParams.of("code", stringValue("code-093012"))
+                .appendParam("value-quantity", stringValue("gt1")));
+
+        var broader = query.broaderQueries();
+
+        assertThat(broader).map(Query::toString).containsExactly("Observation", "Observation?code=code-093012",
+                "Observation?value-quantity=gt1");
+    }
+
+    @Test
+    void broaderQueries_TypeOnly() {
+        assertThat(Query.ofType("Condition").broaderQueries()).isEmpty();
+    }
+
+    @Test
+    void broaderQueries_TooManyParams() {
+        var params = QueryParams.EMPTY;
+        for (int i = 0; i < 5; i++) {
+            params = params.appendParam("name-" + i, stringValue("value-" + i));
+        }
+
+        assertThat(Query.of("Condition", params).broaderQueries()).isEmpty();
+    }
 }
@@ -7,6 +7,7 @@ import de.medizininformatikinitiative.flare.model.mapping.MappingNotFoundExcepti
 import de.medizininformatikinitiative.flare.model.sq.*;
 import de.medizininformatikinitiative.flare.model.translate.Operator;
 import de.medizininformatikinitiative.flare.model.translate.QueryExpression;
+import de.medizininformatikinitiative.flare.service.AdmissionRejectedException;
 import de.medizininformatikinitiative.flare.service.StructuredQueryService;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -56,7 +57,7 @@ class QueryControllerTest {
     @Test
     void execute() {
         when(queryIdGenerator.generateRandom()).thenReturn(ID);
-        when(queryService.execute(ID, STRUCTURED_QUERY)).thenReturn(Mono.just(Population.of(PATIENT_ID)));
+        when(queryService.executeCount(ID, STRUCTURED_QUERY)).thenReturn(Mono.just(1));
 
         client.post()
                 .uri("/query/execute")
@@ -161,7 +162,7 @@ class QueryControllerTest {
     @Test
     void execute_error() {
         when(queryIdGenerator.generateRandom()).thenReturn(ID);
-        when(queryService.execute(ID, STRUCTURED_QUERY)).thenReturn(Mono.error(new MappingNotFoundException(ContextualTermCode.of(TestUtil.CONTEXT, FEVER))));
+        when(queryService.executeCount(ID, STRUCTURED_QUERY)).thenReturn(Mono.error(new MappingNotFoundException(ContextualTermCode.of(TestUtil.CONTEXT, FEVER))));
 
         client.post()
                 .uri("/query/execute")
@@ -194,6 +195,42 @@ class QueryControllerTest {
                 .jsonPath("$.error").isEqualTo("Mapping for the contextual term code ContextualTermCode[context=TermCode[system=context-system, code=context-code, display=context-display], termCode=TermCode[system=http://snomed.info/sct, code=386661006, display=Fever (finding)]] not found.");
     }
 
+    @Test
+    void execute_admissionRejected() {
+        when(queryIdGenerator.generateRandom()).thenReturn(ID);
+        when(queryService.executeCount(ID, STRUCTURED_QUERY)).thenReturn(Mono.error(new AdmissionRejectedException("error-msg-161207")));
+
+        client.post()
+                .uri("/query/execute")
+                .contentType(MEDIA_TYPE_SQ)
+                .bodyValue("""
+                        {
+                          "inclusionCriteria": [
+                            [
+                              {
+                                "context": {
+                                  "system": "context-system",
+                                  "code": "context-code",
+                                  "display": "context-display"
+                                },
+                                "termCodes": [
+                                  {
+                                    "system": "http://snomed.info/sct",
+                                    "code": "386661006",
+                                    "display": "Fever (finding)"
+                                  }
+                                ]
+                              }
+                            ]
+                          ]
+                        }
+                        """)
+                .exchange()
+                .expectStatus().isEqualTo(429)
+                .expectBody()
+                .jsonPath("$.error").isEqualTo("error-msg-161207");
+    }
+
     @Test
     void translate() {
         when(queryService.translate(STRUCTURED_QUERY)).thenReturn(Either.right(Operator.union(QUERY_EXPRESSION)));
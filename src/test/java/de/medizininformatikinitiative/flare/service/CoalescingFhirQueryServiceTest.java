@@ -0,0 +1,133 @@
+package de.medizininformatikinitiative.flare.service;
+
+import de.medizininformatikinitiative.flare.model.Population;
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class CoalescingFhirQueryServiceTest {
+
+    static final UUID ID = UUID.randomUUID();
+    static final Query QUERY = Query.ofType("foo");
+    static final String PATIENT_ID = "patient-id-150118";
+    static final String ERROR_MSG = "error-msg-150125";
+
+    @Mock
+    private FhirQueryService queryService;
+
+    private CoalescingFhirQueryService service;
+    private Sinks.One<Population> upstream;
+    private final AtomicInteger subscriptions = new AtomicInteger();
+    private final AtomicInteger cancellations = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() {
+        service = new CoalescingFhirQueryService(queryService);
+        upstream = Sinks.one();
+        when(queryService.execute(any(), any(), anyBoolean())).thenAnswer(invocation -> upstream.asMono()
+                .doOnSubscribe(s -> subscriptions.incrementAndGet())
+                .doOnCancel(cancellations::incrementAndGet));
+    }
+
+    @Test
+    void execute_concurrent() {
+        var result1 = service.execute(ID, QUERY).cache();
+        var result2 = service.execute(UUID.randomUUID(), QUERY, true).cache();
+        result1.subscribe();
+        result2.subscribe();
+
+        upstream.tryEmitValue(Population.of(PATIENT_ID));
+
+        StepVerifier.create(result1).expectNext(Population.of(PATIENT_ID)).verifyComplete();
+        StepVerifier.create(result2).expectNext(Population.of(PATIENT_ID)).verifyComplete();
+        assertThat(subscriptions).hasValue(1);
+        verify(queryService, times(1)).execute(any(), any(), anyBoolean());
+    }
+
+    @Test
+    void execute_joinRefresh() {
+        var id = UUID.randomUUID();
+        service.execute(ID, QUERY, true).subscribe();
+
+        service.execute(id, QUERY).subscribe();
+
+        verify(queryService).execute(ID, QUERY, true);
+        verify(queryService).promote(id, QUERY);
+    }
+
+    @Test
+    void execute_refreshJoinsQuery() {
+        service.execute(ID, QUERY).subscribe();
+
+        service.execute(UUID.randomUUID(), QUERY, true).subscribe();
+
+        verify(queryService).execute(ID, QUERY, false);
+        verify(queryService, never()).promote(any(), any());
+    }
+
+    @Test
+    void execute_afterTermination() {
+        upstream.tryEmitValue(Population.of(PATIENT_ID));
+
+        StepVerifier.create(service.execute(ID, QUERY)).expectNext(Population.of(PATIENT_ID)).verifyComplete();
+        StepVerifier.create(service.execute(ID, QUERY)).expectNext(Population.of(PATIENT_ID)).verifyComplete();
+
+        verify(queryService, times(2)).execute(any(), any(), anyBoolean());
+    }
+
+    @Test
+    void execute_error() {
+        var result1 = service.execute(ID, QUERY).cache();
+        var result2 = service.execute(ID, QUERY).cache();
+        result1.subscribe(p -> {}, e -> {});
+        result2.subscribe(p -> {}, e -> {});
+
+        upstream.tryEmitError(new Exception(ERROR_MSG));
+
+        StepVerifier.create(result1).verifyErrorMessage(ERROR_MSG);
+        StepVerifier.create(result2).verifyErrorMessage(ERROR_MSG);
+        assertThat(subscriptions).hasValue(1);
+    }
+
+    @Test
+    void execute_cancelOne() {
+        var subscription = service.execute(ID, QUERY).subscribe();
+        var result = service.execute(ID, QUERY).cache();
+        result.subscribe();
+
+        subscription.dispose();
+        upstream.tryEmitValue(Population.of(PATIENT_ID));
+
+        StepVerifier.create(result).expectNext(Population.of(PATIENT_ID)).verifyComplete();
+        assertThat(cancellations).hasValue(0);
+    }
+
+    @Test
+    void execute_cancelAll() {
+        var subscription1 = service.execute(ID, QUERY).subscribe();
+        var subscription2 = service.execute(ID, QUERY).subscribe();
+
+        subscription1.dispose();
+        subscription2.dispose();
+
+        assertThat(cancellations).hasValue(1);
+    }
+}
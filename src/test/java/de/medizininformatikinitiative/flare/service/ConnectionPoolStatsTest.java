@@ -0,0 +1,50 @@
+package de.medizininformatikinitiative.flare.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.netty.resources.ConnectionPoolMetrics;
+
+import java.net.InetSocketAddress;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ConnectionPoolStatsTest {
+
+    private static final InetSocketAddress ADDRESS = InetSocketAddress.createUnresolved("localhost", 8082);
+
+    @Mock
+    private ConnectionPoolMetrics metrics;
+
+    private final ConnectionPoolStats connectionPoolStats = new ConnectionPoolStats();
+
+    @Test
+    void stats_empty() {
+        assertThat(connectionPoolStats.stats()).isEmpty();
+    }
+
+    @Test
+    void stats() {
+        when(metrics.acquiredSize()).thenReturn(3);
+        when(metrics.allocatedSize()).thenReturn(4);
+        when(metrics.idleSize()).thenReturn(1);
+        when(metrics.pendingAcquireSize()).thenReturn(7);
+        when(metrics.maxAllocatedSize()).thenReturn(4);
+        when(metrics.maxPendingAcquireSize()).thenReturn(500);
+        connectionPoolStats.registerMetrics("data-store", "id-140113", ADDRESS, metrics);
+
+        assertThat(connectionPoolStats.stats()).containsExactly(new ConnectionPoolStats.PoolStats("data-store",
+                ADDRESS.toString(), 3, 4, 1, 7, 4, 500));
+    }
+
+    @Test
+    void stats_deRegistered() {
+        connectionPoolStats.registerMetrics("data-store", "id-140113", ADDRESS, metrics);
+        connectionPoolStats.deRegisterMetrics("data-store", "id-140113", ADDRESS);
+
+        assertThat(connectionPoolStats.stats()).isEmpty();
+    }
+}
@@ -61,7 +61,7 @@ class DataStoreIT {
                 .defaultHeader("Accept", "application/fhir+json")
                 .defaultHeader("X-Forwarded-Host", host)
                 .build();
-        dataStore = new DataStore(client, Clock.fixed(FIXED_INSTANT, ZoneOffset.UTC), 1000);
+        dataStore = new DataStore(client, Clock.fixed(FIXED_INSTANT, ZoneOffset.UTC), DataStore.Config.of(1000));
     }
 
     @Test
@@ -2,6 +2,7 @@ package de.medizininformatikinitiative.flare.service;
 
 import de.medizininformatikinitiative.flare.model.Population;
 import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.fhir.QueryParams;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import org.junit.jupiter.api.*;
@@ -13,9 +14,15 @@ import reactor.test.StepVerifier;
 
 import java.io.IOException;
 import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneOffset;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static de.medizininformatikinitiative.flare.model.fhir.QueryParams.stringValue;
+import static org.assertj.core.api.Assertions.assertThat;
 
 class DataStoreTest {
 
@@ -42,7 +49,7 @@ class DataStoreTest {
                 .baseUrl("http://localhost:%d/fhir".formatted(mockStore.getPort()))
                 .defaultHeader("Accept", "application/fhir+json")
                 .build();
-        dataStore = new DataStore(client, Clock.fixed(FIXED_INSTANT, ZoneOffset.UTC), 1000);
+        dataStore = new DataStore(client, Clock.fixed(FIXED_INSTANT, ZoneOffset.UTC), DataStore.Config.of(1000));
     }
 
     @ParameterizedTest
@@ -80,4 +87,147 @@ class DataStoreTest {
 
         StepVerifier.create(result).verifyError(WebClientResponseException.BadRequest.class);
     }
+
+    @Test
+    @DisplayName("follows the next links and combines the patient ids of all pages")
+    void execute_pages() {
+        mockStore.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody("""
+                {"link": [{"relation": "next", "url": "http://localhost:%d/fhir/page-2"}],
+                 "entry": [{"resource": {"subject": {"reference": "Patient/patient-id-153210"}}},
+                           {"resource": {"subject": {"reference": "Patient/patient-id-153215"}}}]}
+                """.formatted(mockStore.getPort())));
+        mockStore.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody("""
+                {"entry": [{"resource": {"subject": {"reference": "Patient/patient-id-153215"}}},
+                           {"resource": {"subject": {"reference": "Patient/patient-id-153225"}}}]}
+                """));
+
+        var result = dataStore.execute(ID, Query.ofType("Observation"));
+
+        StepVerifier.create(result).expectNext(Population.copyOf(List.of("patient-id-153210", "patient-id-153215",
+                "patient-id-153225")).withCreated(FIXED_INSTANT)).verifyComplete();
+    }
+
+    @Test
+    @DisplayName("fetches all partitions and combines their patient ids")
+    void execute_partitions() {
+        var partitionedDataStore = new DataStore(WebClient.create("http://localhost:%d/fhir"
+                .formatted(mockStore.getPort())), Clock.fixed(FIXED_INSTANT, ZoneOffset.UTC),
+                new DataStore.Config(1000, 1000, 1000, Duration.ofSeconds(2), false, 2, Instant.EPOCH, 2, false));
+        mockStore.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody("""
+                {"entry": [{"resource": {"subject": {"reference": "Patient/patient-id-091512"}}}]}
+                """));
+        mockStore.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody("""
+                {"entry": [{"resource": {"subject": {"reference": "Patient/patient-id-091520"}}}]}
+                """));
+
+        var result = partitionedDataStore.execute(ID, Query.ofType("Observation"));
+
+        StepVerifier.create(result).expectNext(Population.copyOf(List.of("patient-id-091512", "patient-id-091520"))
+                .withCreated(FIXED_INSTANT)).verifyComplete();
+    }
+
+    @Test
+    @DisplayName("doesn't fetch pages if the count probe returns zero")
+    void execute_countProbe_zero() {
+        var probingDataStore = new DataStore(WebClient.create("http://localhost:%d/fhir"
+                .formatted(mockStore.getPort())), Clock.fixed(FIXED_INSTANT, ZoneOffset.UTC),
+                new DataStore.Config(1000, 1000, 1000, Duration.ofSeconds(2), true, 2, Instant.EPOCH, 2, false));
+        var requestCount = mockStore.getRequestCount();
+        mockStore.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody("""
+                {"resourceType": "Bundle", "type": "searchset", "total": 0}
+                """));
+
+        var result = probingDataStore.execute(ID, Query.ofType("Observation"));
+
+        StepVerifier.create(result).expectNext(Population.of().withCreated(FIXED_INSTANT)).verifyComplete();
+        assertThat(mockStore.getRequestCount()).isEqualTo(requestCount + 1);
+    }
+
+    @Test
+    @DisplayName("fetches the pages after the count probe returns a total")
+    void execute_countProbe() {
+        var probingDataStore = new DataStore(WebClient.create("http://localhost:%d/fhir"
+                .formatted(mockStore.getPort())), Clock.fixed(FIXED_INSTANT, ZoneOffset.UTC),
+                new DataStore.Config(1000, 1000, 1000, Duration.ofSeconds(2), true, 2, Instant.EPOCH, 2, false));
+        mockStore.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody("""
+                {"resourceType": "Bundle", "type": "searchset", "total": 1}
+                """));
+        mockStore.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody("""
+                {"entry": [{"resource": {"subject": {"reference": "Patient/patient-id-101512"}}}]}
+                """));
+
+        var result = probingDataStore.execute(ID, Query.ofType("Observation"));
+
+        StepVerifier.create(result).expectNext(Population.of("patient-id-101512").withCreated(FIXED_INSTANT))
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("searches patients with _has if the server supports reverse chaining")
+    void execute_reverseChaining() throws InterruptedException {
+        var reverseChainingDataStore = new DataStore(WebClient.create("http://localhost:%d/fhir"
+                .formatted(mockStore.getPort())), Clock.fixed(FIXED_INSTANT, ZoneOffset.UTC),
+                new DataStore.Config(1000, 1000, 1000, Duration.ofSeconds(2), false, 1,
+                        Instant.EPOCH, 1, true));
+        while (mockStore.takeRequest(0, TimeUnit.SECONDS) != null) {
+            // skip the requests of other tests
+        }
+        mockStore.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody("""
+                {"resourceType": "Bundle", "type": "searchset", "total": 0}
+                """));
+        mockStore.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody("""
+                {"entry": [{"resource": {"resourceType": "Patient", "id": "patient-id-111532"}}]}
+                """));
+
+        var result = reverseChainingDataStore.execute(ID, Query.of("Condition", QueryParams.of("code",
+                stringValue("code-111540"))));
+
+        StepVerifier.create(result).expectNext(Population.of("patient-id-111532").withCreated(FIXED_INSTANT))
+                .verifyComplete();
+        assertThat(mockStore.takeRequest().getHeader("Prefer")).isEqualTo("handling=strict");
+        var request = mockStore.takeRequest();
+        assertThat(request.getPath()).isEqualTo("/fhir/Patient/_search");
+        assertThat(request.getBody().readUtf8()).startsWith("_has:Condition:subject:code=code-111540&_elements=id");
+    }
+
+    @Test
+    @DisplayName("retries with a smaller page count if a page exceeds the size limit of the codec")
+    void execute_adaptivePageCount_overflow() throws InterruptedException {
+        var adaptiveDataStore = new DataStore(WebClient.create("http://localhost:%d/fhir"
+                .formatted(mockStore.getPort())), Clock.fixed(FIXED_INSTANT, ZoneOffset.UTC),
+                new DataStore.Config(1000, 100, 1000, Duration.ofSeconds(2), false, 1, Instant.EPOCH, 1, false));
+        while (mockStore.takeRequest(0, TimeUnit.SECONDS) != null) {
+            // skip the requests of other tests
+        }
+        mockStore.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody("""
+                {"entry": [{"resource": {"subject": {"reference": "Patient/%s"}}}]}
+                """.formatted("x".repeat(512 << 10))));
+        mockStore.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody("""
+                {"entry": [{"resource": {"subject": {"reference": "Patient/patient-id-141012"}}}]}
+                """));
+
+        var result = adaptiveDataStore.execute(ID, Query.ofType("Observation"));
+
+        StepVerifier.create(result).expectNext(Population.of("patient-id-141012").withCreated(FIXED_INSTANT))
+                .verifyComplete();
+        assertThat(mockStore.takeRequest().getBody().readUtf8()).endsWith("_count=1000");
+        assertThat(mockStore.takeRequest().getBody().readUtf8()).endsWith("_count=500");
+    }
+
+    @Test
+    void lastUpdatedPartitions_one() {
+        var partitions = DataStore.lastUpdatedPartitions(1, Instant.EPOCH, FIXED_INSTANT);
+
+        assertThat(partitions).containsExactly(QueryParams.EMPTY);
+    }
+
+    @Test
+    void lastUpdatedPartitions_three() {
+        var partitions = DataStore.lastUpdatedPartitions(3, Instant.EPOCH, Instant.ofEpochSecond(300));
+
+        assertThat(partitions).map(QueryParams::toString).containsExactly(
+                "_lastUpdated=lt1970-01-01T00:01:40Z",
+                "_lastUpdated=ge1970-01-01T00:01:40Z&_lastUpdated=lt1970-01-01T00:03:20Z",
+                "_lastUpdated=ge1970-01-01T00:03:20Z");
+    }
 }
@@ -0,0 +1,179 @@
+package de.medizininformatikinitiative.flare.service;
+
+import de.medizininformatikinitiative.flare.model.Population;
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GroupCacheTest {
+
+    static final Query QUERY_1 = Query.ofType("foo");
+    static final Query QUERY_2 = Query.ofType("bar");
+    static final Query QUERY_3 = Query.ofType("baz");
+    static final Query QUERY_4 = Query.ofType("qux");
+    static final String PATIENT_ID = "patient-id-093512";
+    static final String PATIENT_ID_1 = "patient-id-1-093512";
+
+    private GroupCache cache;
+    private final AtomicInteger executions = new AtomicInteger();
+    private final List<Set<Query>> executed = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        cache = new GroupCache(new GroupCache.Config(128, Duration.ofHours(1)), Clock.systemUTC());
+        cache.init();
+    }
+
+    private Function<Set<Query>, Mono<Population>> execution(Population population) {
+        return queries -> Mono.fromSupplier(() -> {
+            executions.incrementAndGet();
+            executed.add(queries);
+            return population;
+        });
+    }
+
+    @Test
+    void execute_hit() {
+        var population = Population.of(PATIENT_ID).withCreated(Instant.now());
+        cache.execute(Set.of(QUERY_1, QUERY_2), execution(population)).block();
+
+        var result = cache.execute(Set.of(QUERY_2, QUERY_1), execution(population));
+
+        StepVerifier.create(result).expectNext(population).verifyComplete();
+        assertThat(executions).hasValue(1);
+    }
+
+    @Test
+    void execute_expired() {
+        var population = Population.of(PATIENT_ID).withCreated(Instant.now().minus(Duration.ofHours(2)));
+        cache.execute(Set.of(QUERY_1, QUERY_2), execution(population)).block();
+
+        var result = cache.execute(Set.of(QUERY_1, QUERY_2), execution(population));
+
+        StepVerifier.create(result).expectNext(population).verifyComplete();
+        assertThat(executions).hasValue(2);
+    }
+
+    @Test
+    void execute_expiredNotUsedForAssembly() {
+        var population = Population.of(PATIENT_ID).withCreated(Instant.now().minus(Duration.ofHours(2)));
+        cache.execute(Set.of(QUERY_1, QUERY_2), execution(population)).block();
+
+        cache.execute(Set.of(QUERY_1, QUERY_2, QUERY_3), execution(population)).block();
+
+        assertThat(executed).containsExactly(Set.of(QUERY_1, QUERY_2), Set.of(QUERY_1, QUERY_2, QUERY_3));
+        assertThat(cache.stats().estimatedEntryCount()).isZero();
+    }
+
+    @Test
+    void execute_lazy() {
+        var population = Population.of(PATIENT_ID).withCreated(Instant.now());
+
+        var result = cache.execute(Set.of(QUERY_1, QUERY_2), execution(population));
+
+        assertThat(executions).hasValue(0);
+        StepVerifier.create(result).expectNext(population).verifyComplete();
+        assertThat(executions).hasValue(1);
+    }
+
+    @Test
+    void execute_cancelWhileOtherWaits() {
+        var population = Population.of(PATIENT_ID).withCreated(Instant.now());
+        var sink = Sinks.<Population>one();
+        Function<Set<Query>, Mono<Population>> execution = queries -> {
+            executions.incrementAndGet();
+            return sink.asMono();
+        };
+        var cancelled = cache.execute(Set.of(QUERY_1, QUERY_2), execution).subscribe();
+        var waiting = cache.execute(Set.of(QUERY_1, QUERY_2), execution).toFuture();
+
+        cancelled.dispose();
+        sink.tryEmitValue(population);
+
+        assertThat(waiting).isCompletedWithValue(population);
+        assertThat(executions).hasValue(1);
+        assertThat(cache.stats().estimatedEntryCount()).isOne();
+    }
+
+    @Test
+    void stats() {
+        var population = Population.of(PATIENT_ID).withCreated(Instant.now());
+        cache.execute(Set.of(QUERY_1, QUERY_2), execution(population)).block();
+        cache.execute(Set.of(QUERY_1, QUERY_2), execution(population)).block();
+
+        var stats = cache.stats();
+
+        assertThat(stats.estimatedEntryCount()).isOne();
+        assertThat(stats.maxMemoryMiB()).isEqualTo(128);
+        assertThat(stats.hitCount()).isOne();
+        assertThat(stats.missCount()).isOne();
+    }
+
+    @Test
+    void execute_singleQuery() {
+        var population = Population.of(PATIENT_ID).withCreated(Instant.now());
+        cache.execute(Set.of(QUERY_1), execution(population)).block();
+
+        var result = cache.execute(Set.of(QUERY_1), execution(population));
+
+        StepVerifier.create(result).expectNext(population).verifyComplete();
+        assertThat(executions).hasValue(2);
+    }
+
+    @Test
+    void execute_disabled() {
+        cache = new GroupCache(GroupCache.Config.disabled(), Clock.systemUTC());
+        cache.init();
+        var population = Population.of(PATIENT_ID).withCreated(Instant.now());
+        cache.execute(Set.of(QUERY_1, QUERY_2), execution(population)).block();
+
+        var result = cache.execute(Set.of(QUERY_1, QUERY_2), execution(population));
+
+        StepVerifier.create(result).expectNext(population).verifyComplete();
+        assertThat(cache.enabled()).isFalse();
+        assertThat(executions).hasValue(2);
+    }
+
+    @Test
+    void execute_assembleFromCachedGroup() {
+        var created = Instant.now();
+        var population = Population.of(PATIENT_ID).withCreated(created);
+        var population1 = Population.of(PATIENT_ID_1).withCreated(created.plusSeconds(1));
+        cache.execute(Set.of(QUERY_1, QUERY_2), execution(population)).block();
+
+        var result = cache.execute(Set.of(QUERY_1, QUERY_2, QUERY_3), execution(population1));
+
+        StepVerifier.create(result).expectNext(Population.of(PATIENT_ID, PATIENT_ID_1).withCreated(created))
+                .verifyComplete();
+        assertThat(executed).containsExactly(Set.of(QUERY_1, QUERY_2), Set.of(QUERY_3));
+    }
+
+    @Test
+    void execute_assembleFromCachedGroupsOnly() {
+        var created = Instant.now();
+        var population = Population.of(PATIENT_ID).withCreated(created);
+        var population1 = Population.of(PATIENT_ID_1).withCreated(created);
+        cache.execute(Set.of(QUERY_1, QUERY_2), execution(population)).block();
+        cache.execute(Set.of(QUERY_3, QUERY_4), execution(population1)).block();
+
+        var result = cache.execute(Set.of(QUERY_1, QUERY_2, QUERY_3, QUERY_4), execution(Population.of()));
+
+        StepVerifier.create(result).expectNext(Population.of(PATIENT_ID, PATIENT_ID_1).withCreated(created))
+                .verifyComplete();
+        assertThat(executions).hasValue(2);
+    }
+}
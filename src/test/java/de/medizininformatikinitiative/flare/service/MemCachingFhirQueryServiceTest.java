@@ -2,17 +2,28 @@ package de.medizininformatikinitiative.flare.service;
 
 import de.medizininformatikinitiative.flare.model.Population;
 import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.fhir.QueryParams;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 import reactor.test.StepVerifier;
 
+import java.time.Clock;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZonedDateTime;
 import java.util.UUID;
 
+import static de.medizininformatikinitiative.flare.model.fhir.QueryParams.stringValue;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -20,18 +31,24 @@ class MemCachingFhirQueryServiceTest {
 
     static final UUID ID = UUID.randomUUID();
     static final Query QUERY = Query.ofType("foo");
+    static final Query QUERY_1 = Query.ofType("bar");
     static final String PATIENT_ID = "patient-id-113003";
+    static final String PATIENT_ID_1 = "patient-id-1-170112";
     static final String ERROR_MSG = "error-msg-103632";
 
     @Mock
     private FhirQueryService queryService;
 
+    @Mock
+    private FhirQueryService deltaQueryService;
+
     private MemCachingFhirQueryService service;
 
     @BeforeEach
     void setUp() {
-        service = new MemCachingFhirQueryService(queryService, new MemCachingFhirQueryService.Config(128,
-                Duration.ofMinutes(1), Duration.ofMinutes(1)));
+        service = new MemCachingFhirQueryService(queryService, deltaQueryService,
+                MemCachingFhirQueryService.Config.of(128, Duration.ofMinutes(1), Duration.ofMinutes(1), Duration.ZERO),
+                Clock.systemUTC());
         service.init();
     }
 
@@ -53,10 +70,27 @@ class MemCachingFhirQueryServiceTest {
         StepVerifier.create(result).expectNext(Population.of(PATIENT_ID)).verifyComplete();
     }
 
+    @Test
+    void execute_cancelWhileOtherWaits() {
+        var sink = Sinks.<Population>one();
+        when(queryService.execute(ID, QUERY)).thenReturn(sink.asMono());
+        var cancelled = service.execute(ID, QUERY).subscribe();
+
+        var result = service.execute(ID, QUERY);
+
+        StepVerifier.create(result)
+                .then(cancelled::dispose)
+                .then(() -> sink.tryEmitValue(Population.of(PATIENT_ID)))
+                .expectNext(Population.of(PATIENT_ID))
+                .verifyComplete();
+        verify(queryService).execute(ID, QUERY);
+    }
+
     @Test
     void refresh() throws InterruptedException {
-        service = new MemCachingFhirQueryService(queryService, new MemCachingFhirQueryService.Config(128,
-                Duration.ofMinutes(1), Duration.ofMillis(100)));
+        service = new MemCachingFhirQueryService(queryService, deltaQueryService,
+                MemCachingFhirQueryService.Config.of(128, Duration.ofMinutes(1), Duration.ofMillis(100), Duration.ZERO),
+                Clock.systemUTC());
         service.init();
         when(queryService.execute(ID, QUERY)).thenReturn(Mono.just(Population.of()));
         service.execute(ID, QUERY);
@@ -67,4 +101,127 @@ class MemCachingFhirQueryServiceTest {
 
         StepVerifier.create(result).expectNext(Population.of(PATIENT_ID)).verifyComplete();
     }
+
+    @Test
+    void refresh_incremental() throws InterruptedException {
+        service = new MemCachingFhirQueryService(queryService, deltaQueryService,
+                MemCachingFhirQueryService.Config.of(128, Duration.ofMinutes(1), Duration.ofMillis(100),
+                        Duration.ofHours(1)), Clock.systemUTC());
+        service.init();
+        var loaded = Instant.now();
+        var refreshed = loaded.plusSeconds(1);
+        when(queryService.execute(ID, QUERY)).thenReturn(Mono.just(Population.of(PATIENT_ID).withCreated(loaded)));
+        service.execute(ID, QUERY);
+        when(deltaQueryService.execute(ID, MemCachingFhirQueryService.deltaQuery(QUERY, loaded), true))
+                .thenReturn(Mono.just(Population.of(PATIENT_ID_1).withCreated(refreshed)));
+        Thread.sleep(200);
+
+        var result = service.execute(ID, QUERY);
+
+        StepVerifier.create(result).expectNext(Population.of(PATIENT_ID, PATIENT_ID_1).withCreated(refreshed))
+                .verifyComplete();
+    }
+
+    @Test
+    void deltaQuery() {
+        var query = MemCachingFhirQueryService.deltaQuery(QUERY, Instant.parse("2024-05-06T07:08:09.123Z"));
+
+        assertThat(query).isEqualTo(Query.of("foo", QueryParams.of("_lastUpdated",
+                stringValue("gt2024-05-06T07:08:09Z"))));
+    }
+
+    @Test
+    void refreshScheduled_mostHitFirst() {
+        service = new MemCachingFhirQueryService(queryService, deltaQueryService,
+                new MemCachingFhirQueryService.Config(128, Duration.ofMinutes(1), Duration.ofMinutes(1), Duration.ZERO,
+                        LocalTime.MIDNIGHT, Duration.ofHours(1), 60_000), Clock.systemUTC());
+        service.init();
+        when(queryService.execute(ID, QUERY)).thenReturn(Mono.just(Population.of()));
+        when(queryService.execute(ID, QUERY_1)).thenReturn(Mono.just(Population.of()));
+        service.execute(ID, QUERY).block();
+        service.execute(ID, QUERY_1).block();
+        service.execute(ID, QUERY_1).block();
+        when(queryService.execute(ID, QUERY, true)).thenReturn(Mono.just(Population.of(PATIENT_ID)));
+        when(queryService.execute(ID, QUERY_1, true)).thenReturn(Mono.just(Population.of(PATIENT_ID_1)));
+
+        var result = service.refreshScheduled(Instant.now().plusSeconds(1));
+
+        StepVerifier.create(result).expectNext(2L).verifyComplete();
+        var inOrder = inOrder(queryService);
+        inOrder.verify(queryService).execute(ID, QUERY_1, true);
+        inOrder.verify(queryService).execute(ID, QUERY, true);
+        service.destroy();
+    }
+
+    @Test
+    void refreshScheduled_windowOver() {
+        service = new MemCachingFhirQueryService(queryService, deltaQueryService,
+                new MemCachingFhirQueryService.Config(128, Duration.ofMinutes(1), Duration.ofMinutes(1), Duration.ZERO,
+                        LocalTime.MIDNIGHT, Duration.ofHours(1), 60_000), Clock.systemUTC());
+        service.init();
+        when(queryService.execute(ID, QUERY)).thenReturn(Mono.just(Population.of()));
+        service.execute(ID, QUERY).block();
+
+        var result = service.refreshScheduled(Instant.now());
+
+        StepVerifier.create(result).expectNext(0L).verifyComplete();
+        service.destroy();
+    }
+
+    @Test
+    void refreshScheduled_slowRefreshCrossesWindowEnd() {
+        service = new MemCachingFhirQueryService(queryService, deltaQueryService,
+                new MemCachingFhirQueryService.Config(128, Duration.ofMinutes(1), Duration.ofMinutes(1), Duration.ZERO,
+                        LocalTime.MIDNIGHT, Duration.ofHours(1), 60_000), Clock.systemUTC());
+        service.init();
+        when(queryService.execute(ID, QUERY)).thenReturn(Mono.just(Population.of()));
+        when(queryService.execute(ID, QUERY_1)).thenReturn(Mono.just(Population.of()));
+        service.execute(ID, QUERY).block();
+        service.execute(ID, QUERY_1).block();
+        service.execute(ID, QUERY_1).block();
+        when(queryService.execute(ID, QUERY_1, true)).thenReturn(Mono.just(Population.of(PATIENT_ID_1))
+                .delayElement(Duration.ofMillis(500)));
+
+        var result = service.refreshScheduled(Instant.now().plusMillis(200));
+
+        StepVerifier.create(result).expectNext(1L).verifyComplete();
+        verify(queryService, never()).execute(ID, QUERY, true);
+        service.destroy();
+    }
+
+    @Test
+    void untilNext() {
+        var now = ZonedDateTime.parse("2024-05-06T07:00:00Z");
+
+        assertThat(MemCachingFhirQueryService.untilNext(LocalTime.of(8, 0), now)).isEqualTo(Duration.ofHours(1));
+        assertThat(MemCachingFhirQueryService.untilNext(LocalTime.of(7, 0), now)).isEqualTo(Duration.ofDays(1));
+        assertThat(MemCachingFhirQueryService.untilNext(LocalTime.of(2, 0), now)).isEqualTo(Duration.ofHours(19));
+    }
+
+    @Test
+    void execute_emptyBroaderQuery() {
+        var broader = Query.of("Condition", QueryParams.of("code", stringValue("code-094512")));
+        var narrower = Query.of("Condition", broader.params().appendParam("recorded-date", stringValue("gt2020")));
+        var created = Instant.now();
+        when(queryService.execute(ID, broader)).thenReturn(Mono.just(Population.of().withCreated(created)));
+        service.execute(ID, broader).block();
+
+        var result = service.execute(ID, narrower);
+
+        StepVerifier.create(result).expectNext(Population.of().withCreated(created)).verifyComplete();
+        verify(queryService, never()).execute(ID, narrower);
+    }
+
+    @Test
+    void execute_nonEmptyBroaderQuery() {
+        var broader = Query.of("Condition", QueryParams.of("code", stringValue("code-094512")));
+        var narrower = Query.of("Condition", broader.params().appendParam("recorded-date", stringValue("gt2020")));
+        when(queryService.execute(ID, broader)).thenReturn(Mono.just(Population.of(PATIENT_ID)));
+        when(queryService.execute(ID, narrower)).thenReturn(Mono.just(Population.of(PATIENT_ID_1)));
+        service.execute(ID, broader).block();
+
+        var result = service.execute(ID, narrower);
+
+        StepVerifier.create(result).expectNext(Population.of(PATIENT_ID_1)).verifyComplete();
+    }
 }
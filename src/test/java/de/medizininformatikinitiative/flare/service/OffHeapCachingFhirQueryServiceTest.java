@@ -0,0 +1,138 @@
+package de.medizininformatikinitiative.flare.service;
+
+import de.medizininformatikinitiative.flare.model.Population;
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class OffHeapCachingFhirQueryServiceTest {
+
+    static final UUID ID = UUID.randomUUID();
+    static final Query QUERY = Query.ofType("foo");
+    static final String PATIENT_ID = "patient-id-101512";
+    static final String PATIENT_ID_1 = "patient-id-1-101512";
+    static final String ERROR_MSG = "error-msg-101512";
+
+    @Mock
+    private FhirQueryService queryService;
+
+    private OffHeapCachingFhirQueryService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new OffHeapCachingFhirQueryService(queryService,
+                new OffHeapCachingFhirQueryService.Config(128, Duration.ofHours(1)), Schedulers.immediate(),
+                Clock.systemUTC());
+        service.init();
+    }
+
+    @Test
+    void execute_error() {
+        when(queryService.execute(ID, QUERY, false)).thenReturn(Mono.error(new Exception(ERROR_MSG)));
+
+        var result = service.execute(ID, QUERY);
+
+        StepVerifier.create(result).verifyErrorMessage(ERROR_MSG);
+    }
+
+    @Test
+    void execute_hit() {
+        var population = Population.of(PATIENT_ID).withCreated(Instant.now());
+        when(queryService.execute(ID, QUERY, false)).thenReturn(Mono.just(population));
+        service.execute(ID, QUERY).block();
+
+        var result = service.execute(ID, QUERY);
+
+        StepVerifier.create(result).expectNext(population).verifyComplete();
+        verify(queryService, times(1)).execute(ID, QUERY, false);
+        assertThat(service.stats().hitCount()).isEqualTo(1);
+        assertThat(service.stats().missCount()).isEqualTo(1);
+    }
+
+    @Test
+    void execute_hitDecodedOnScheduler() {
+        var scheduler = Schedulers.newSingle("off-heap-test");
+        service = new OffHeapCachingFhirQueryService(queryService,
+                new OffHeapCachingFhirQueryService.Config(128, Duration.ofHours(1)), scheduler, Clock.systemUTC());
+        service.init();
+        var population = Population.of(PATIENT_ID).withCreated(Instant.now());
+        when(queryService.execute(ID, QUERY, false)).thenReturn(Mono.just(population));
+        service.execute(ID, QUERY).block();
+
+        var result = service.execute(ID, QUERY).map(p -> Thread.currentThread().getName());
+
+        StepVerifier.create(result).assertNext(name -> assertThat(name).startsWith("off-heap-test")).verifyComplete();
+        scheduler.dispose();
+    }
+
+    @Test
+    void stats() {
+        var population = Population.of(PATIENT_ID).withCreated(Instant.now());
+        when(queryService.execute(ID, QUERY, false)).thenReturn(Mono.just(population));
+        service.execute(ID, QUERY).block();
+
+        var stats = service.stats();
+
+        assertThat(stats.estimatedEntryCount()).isEqualTo(1);
+        assertThat(stats.maxMemoryMiB()).isEqualTo(128);
+        assertThat(stats.directMemoryMiB()).isGreaterThanOrEqualTo(stats.usedMemoryMiB());
+    }
+
+    @Test
+    void execute_expired() {
+        var population = Population.of(PATIENT_ID).withCreated(Instant.now().minus(Duration.ofHours(2)));
+        when(queryService.execute(ID, QUERY, false)).thenReturn(Mono.just(population));
+        service.execute(ID, QUERY).block();
+
+        var result = service.execute(ID, QUERY);
+
+        StepVerifier.create(result).expectNext(population).verifyComplete();
+        verify(queryService, times(2)).execute(ID, QUERY, false);
+    }
+
+    @Test
+    void execute_ignoreCache() {
+        var population = Population.of(PATIENT_ID).withCreated(Instant.now());
+        var refreshed = Population.of(PATIENT_ID_1).withCreated(Instant.now());
+        when(queryService.execute(ID, QUERY, false)).thenReturn(Mono.just(population));
+        when(queryService.execute(ID, QUERY, true)).thenReturn(Mono.just(refreshed));
+        service.execute(ID, QUERY).block();
+
+        service.execute(ID, QUERY, true).block();
+
+        StepVerifier.create(service.execute(ID, QUERY)).expectNext(refreshed).verifyComplete();
+    }
+
+    @Test
+    void execute_disabled() {
+        service = new OffHeapCachingFhirQueryService(queryService,
+                new OffHeapCachingFhirQueryService.Config(0, Duration.ofHours(1)), Schedulers.immediate(),
+                Clock.systemUTC());
+        service.init();
+        var population = Population.of(PATIENT_ID).withCreated(Instant.now());
+        when(queryService.execute(ID, QUERY, false)).thenReturn(Mono.just(population));
+        service.execute(ID, QUERY).block();
+
+        var result = service.execute(ID, QUERY);
+
+        StepVerifier.create(result).expectNext(population).verifyComplete();
+        verify(queryService, times(2)).execute(ID, QUERY, false);
+    }
+}
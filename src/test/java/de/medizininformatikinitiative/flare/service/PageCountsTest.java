@@ -0,0 +1,106 @@
+package de.medizininformatikinitiative.flare.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PageCountsTest {
+
+    private static final long FAST = Duration.ofMillis(100).toNanos();
+    private static final long SLOW = Duration.ofSeconds(3).toNanos();
+
+    private final PageCounts pageCounts = new PageCounts(1000, 100, 5000, Duration.ofSeconds(2));
+
+    @Test
+    void create_invalidBounds() {
+        assertThatThrownBy(() -> new PageCounts(1000, 2000, 5000, Duration.ofSeconds(2)))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void pageCount_initial() {
+        assertThat(pageCounts.pageCount("Observation")).isEqualTo(1000);
+    }
+
+    @Test
+    void pageCount_total() {
+        assertThat(pageCounts.pageCount("Observation", -1)).isEqualTo(1000);
+        assertThat(pageCounts.pageCount("Observation", 10)).isEqualTo(1000);
+        assertThat(pageCounts.pageCount("Observation", 3000)).isEqualTo(3000);
+        assertThat(pageCounts.pageCount("Observation", 6000)).isEqualTo(1000);
+    }
+
+    @Test
+    void observe_fastFullPage() {
+        pageCounts.observe("Observation", 1000, 1000, FAST);
+
+        assertThat(pageCounts.pageCount("Observation")).isEqualTo(2000);
+        assertThat(pageCounts.pageCount("Condition")).isEqualTo(1000);
+    }
+
+    @Test
+    void observe_fastFullPage_max() {
+        pageCounts.observe("Observation", 4000, 4000, FAST);
+
+        assertThat(pageCounts.pageCount("Observation")).isEqualTo(5000);
+    }
+
+    @Test
+    void observe_fastFullPage_concurrent() {
+        pageCounts.observe("Observation", 1000, 1000, FAST);
+        pageCounts.observe("Observation", 1000, 1000, FAST);
+
+        assertThat(pageCounts.pageCount("Observation")).isEqualTo(2000);
+    }
+
+    @Test
+    void observe_slowFullPage() {
+        pageCounts.observe("Observation", 1000, 1000, SLOW);
+
+        assertThat(pageCounts.pageCount("Observation")).isEqualTo(500);
+    }
+
+    @Test
+    void observe_slowFullPage_min() {
+        pageCounts.observe("Observation", 150, 150, SLOW);
+
+        assertThat(pageCounts.pageCount("Observation")).isEqualTo(100);
+    }
+
+    @Test
+    void observe_partialPage() {
+        pageCounts.observe("Observation", 1000, 10, SLOW);
+
+        assertThat(pageCounts.pageCount("Observation")).isEqualTo(1000);
+    }
+
+    @Test
+    void observe_fixed() {
+        var fixed = new PageCounts(1000, 1000, 1000, Duration.ofSeconds(2));
+
+        fixed.observe("Observation", 1000, 1000, FAST);
+        fixed.overflow("Observation", 1000);
+
+        assertThat(fixed.pageCount("Observation")).isEqualTo(1000);
+    }
+
+    @Test
+    void overflow() {
+        pageCounts.overflow("Observation", 3000);
+
+        assertThat(pageCounts.pageCount("Observation")).isEqualTo(1000);
+        assertThat(pageCounts.pageCount("Observation", 3000)).isEqualTo(1000);
+        assertThat(pageCounts.pageCount("Observation", 2999)).isEqualTo(2999);
+    }
+
+    @Test
+    void overflow_limitsGrowth() {
+        pageCounts.overflow("Observation", 1500);
+        pageCounts.observe("Observation", 1000, 1000, FAST);
+
+        assertThat(pageCounts.pageCount("Observation")).isEqualTo(1499);
+    }
+}
@@ -0,0 +1,202 @@
+package de.medizininformatikinitiative.flare.service;
+
+import de.medizininformatikinitiative.flare.model.Population;
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.fhir.QueryParams;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static de.medizininformatikinitiative.flare.model.fhir.QueryParams.stringValue;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class SchedulingFhirQueryServiceTest {
+
+    static final UUID ID_A = UUID.randomUUID();
+    static final UUID ID_B = UUID.randomUUID();
+    static final String PATIENT_ID = "patient-id-161513";
+
+    @Mock
+    private FhirQueryService queryService;
+
+    private final Map<Query, Sinks.One<Population>> upstreams = new ConcurrentHashMap<>();
+    private final List<Query> started = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        when(queryService.execute(any(), any(), anyBoolean())).thenAnswer(invocation -> {
+            Query query = invocation.getArgument(1);
+            return upstreams.computeIfAbsent(query, q -> Sinks.one()).asMono()
+                    .doOnSubscribe(s -> started.add(query));
+        });
+    }
+
+    private static Query query(String code) {
+        return Query.of("Condition", QueryParams.of("code", stringValue(code)));
+    }
+
+    private void finish(Query query) {
+        upstreams.get(query).tryEmitValue(Population.of(PATIENT_ID));
+    }
+
+    @Test
+    void execute_disabled() {
+        var service = new SchedulingFhirQueryService(queryService, new SchedulingFhirQueryService.Config(0, 0, 0));
+
+        service.execute(ID_A, query("a1")).subscribe();
+        service.execute(ID_A, query("a2")).subscribe();
+
+        assertThat(started).containsExactly(query("a1"), query("a2"));
+    }
+
+    @Test
+    void execute_limitsConcurrency() {
+        var service = new SchedulingFhirQueryService(queryService, new SchedulingFhirQueryService.Config(1, 10, 0));
+        service.execute(ID_A, query("a1")).subscribe();
+        var result = service.execute(ID_A, query("a2")).cache();
+        result.subscribe();
+
+        assertThat(started).containsExactly(query("a1"));
+
+        finish(query("a1"));
+        assertThat(started).containsExactly(query("a1"), query("a2"));
+
+        finish(query("a2"));
+        StepVerifier.create(result).expectNext(Population.of(PATIENT_ID)).verifyComplete();
+    }
+
+    @Test
+    void execute_roundRobin() {
+        var service = new SchedulingFhirQueryService(queryService, new SchedulingFhirQueryService.Config(1, 10, 0));
+        service.execute(ID_A, query("a1")).subscribe();
+        service.execute(ID_A, query("a2")).subscribe();
+        service.execute(ID_A, query("a3")).subscribe();
+        service.execute(ID_B, query("b1")).subscribe();
+
+        finish(query("a1"));
+        finish(query("a2"));
+        finish(query("b1"));
+
+        assertThat(started).containsExactly(query("a1"), query("a2"), query("b1"), query("a3"));
+    }
+
+    @Test
+    void execute_refreshLast() {
+        var service = new SchedulingFhirQueryService(queryService, new SchedulingFhirQueryService.Config(1, 10, 0));
+        service.execute(ID_A, query("a1")).subscribe();
+        service.execute(ID_B, query("r1"), true).subscribe();
+        service.execute(ID_A, query("a2")).subscribe();
+
+        finish(query("a1"));
+        finish(query("a2"));
+
+        assertThat(started).containsExactly(query("a1"), query("a2"), query("r1"));
+    }
+
+    @Test
+    void execute_refreshWeight() {
+        var service = new SchedulingFhirQueryService(queryService, new SchedulingFhirQueryService.Config(1, 10, 1));
+        service.execute(ID_A, query("a1")).subscribe();
+        service.execute(ID_B, query("r1"), true).subscribe();
+        service.execute(ID_A, query("a2")).subscribe();
+
+        finish(query("a1"));
+        finish(query("r1"));
+
+        assertThat(started).containsExactly(query("a1"), query("r1"), query("a2"));
+    }
+
+    @Test
+    void promote() {
+        var service = new SchedulingFhirQueryService(queryService, new SchedulingFhirQueryService.Config(1, 10, 0));
+        service.execute(ID_A, query("a1")).subscribe();
+        service.execute(ID_A, query("r1"), true).subscribe();
+        service.execute(ID_A, query("a2")).subscribe();
+        service.execute(ID_A, query("a3")).subscribe();
+        service.execute(ID_A, query("a4")).subscribe();
+        service.execute(ID_B, query("b1")).subscribe();
+
+        service.promote(ID_B, query("r1"));
+        finish(query("a1"));
+        finish(query("a2"));
+        finish(query("b1"));
+        finish(query("a3"));
+
+        assertThat(started).containsExactly(query("a1"), query("a2"), query("b1"), query("a3"), query("r1"));
+    }
+
+    @Test
+    void execute_coalescedRefreshPromoted() {
+        var scheduler = new SchedulingFhirQueryService(queryService, new SchedulingFhirQueryService.Config(1, 10, 0));
+        var service = new CoalescingFhirQueryService(scheduler);
+        service.execute(ID_A, query("a1")).subscribe();
+        service.execute(ID_A, query("r1"), true).subscribe();
+        service.execute(ID_A, query("a2")).subscribe();
+        var result = service.execute(ID_B, query("r1")).cache();
+        result.subscribe();
+        service.execute(ID_A, query("a3")).subscribe();
+
+        finish(query("a1"));
+        finish(query("a2"));
+        finish(query("r1"));
+
+        assertThat(started).containsExactly(query("a1"), query("a2"), query("r1"), query("a3"));
+        StepVerifier.create(result).expectNext(Population.of(PATIENT_ID)).verifyComplete();
+    }
+
+    @Test
+    void execute_queueFull() {
+        var service = new SchedulingFhirQueryService(queryService, new SchedulingFhirQueryService.Config(1, 2, 0));
+        service.execute(ID_A, query("a1")).subscribe();
+        service.execute(ID_A, query("a2")).subscribe();
+        var evicted = service.execute(ID_A, query("a3")).cache();
+        evicted.subscribe(p -> {}, e -> {});
+        service.execute(ID_B, query("b1")).subscribe();
+
+        StepVerifier.create(evicted).verifyError(AdmissionRejectedException.class);
+        StepVerifier.create(service.execute(ID_A, query("a4"))).verifyError(AdmissionRejectedException.class);
+
+        finish(query("a1"));
+        finish(query("a2"));
+
+        assertThat(started).containsExactly(query("a1"), query("a2"), query("b1"));
+    }
+
+    @Test
+    void execute_cancelWaiting() {
+        var service = new SchedulingFhirQueryService(queryService, new SchedulingFhirQueryService.Config(1, 10, 0));
+        service.execute(ID_A, query("a1")).subscribe();
+        var waiting = service.execute(ID_A, query("a2")).subscribe();
+        service.execute(ID_B, query("b1")).subscribe();
+
+        waiting.dispose();
+        finish(query("a1"));
+
+        assertThat(started).containsExactly(query("a1"), query("b1"));
+    }
+
+    @Test
+    void execute_cancelRunning() {
+        var service = new SchedulingFhirQueryService(queryService, new SchedulingFhirQueryService.Config(1, 10, 0));
+        var running = service.execute(ID_A, query("a1")).subscribe();
+        service.execute(ID_B, query("b1")).subscribe();
+
+        running.dispose();
+
+        assertThat(started).containsExactly(query("a1"), query("b1"));
+    }
+}
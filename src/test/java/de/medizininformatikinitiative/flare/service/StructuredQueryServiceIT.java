@@ -258,7 +258,7 @@ class StructuredQueryServiceIT {
 
         @Bean
         public FhirQueryService fhirQueryService(WebClient dataStoreClient) {
-            return new DataStore(dataStoreClient, Clock.systemDefaultZone(), 1);
+            return new DataStore(dataStoreClient, Clock.systemDefaultZone(), DataStore.Config.of(1));
         }
 
         @Bean
@@ -273,12 +273,14 @@ class StructuredQueryServiceIT {
 
         @Bean
         public StructuredQueryService service(FhirQueryService fhirQueryService, Translator translator) {
-            return new StructuredQueryService(fhirQueryService, translator);
+            return new StructuredQueryService(fhirQueryService, translator,
+                    new GroupCache(GroupCache.Config.disabled(), Clock.systemDefaultZone()));
         }
 
         @Bean
         public StructuredQueryService service_BloodPressure(FhirQueryService fhirQueryService, Translator translator_BloodPressure) {
-            return new StructuredQueryService(fhirQueryService, translator_BloodPressure);
+            return new StructuredQueryService(fhirQueryService, translator_BloodPressure,
+                    new GroupCache(GroupCache.Config.disabled(), Clock.systemDefaultZone()));
         }
     }
 }
@@ -15,16 +15,25 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.List;
 import java.util.UUID;
 
 import static de.medizininformatikinitiative.flare.Assertions.assertThat;
 import static de.medizininformatikinitiative.flare.model.fhir.QueryParams.conceptValue;
 import static de.medizininformatikinitiative.flare.model.sq.TestUtil.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @SuppressWarnings("SameParameterValue")
@@ -45,6 +54,9 @@ class StructuredQueryServiceTest {
     @Mock
     private Translator translator;
 
+    @Spy
+    private GroupCache groupCache = new GroupCache(GroupCache.Config.disabled(), Clock.systemUTC());
+
     @InjectMocks
     private StructuredQueryService service;
 
@@ -155,6 +167,26 @@ class StructuredQueryServiceTest {
             StepVerifier.create(result).expectNext(EMPTY_POP).verifyComplete();
         }
 
+        @Test
+        @DisplayName("executeCount: multiple patients → returns 0")
+        void executeCount_MultiplePatients() {
+            var query = query(inclAnd(PATIENT_1_POP, PATIENT_2_POP));
+
+            var result = service.executeCount(ID, query);
+
+            StepVerifier.create(result).expectNext(0).verifyComplete();
+        }
+
+        @Test
+        @DisplayName("executeCount: same patient → returns 1")
+        void executeCount_SamePatient() {
+            var query = query(inclAnd(PATIENT_POP, PATIENT_POP));
+
+            var result = service.executeCount(ID, query);
+
+            StepVerifier.create(result).expectNext(1).verifyComplete();
+        }
+
         @Test
         @DisplayName("execute: same patient → returns the Patient once")
         void execute_SamePatient() {
@@ -165,6 +197,48 @@ class StructuredQueryServiceTest {
             StepVerifier.create(result).expectNext(PATIENT_POP).verifyComplete();
         }
 
+        @Test
+        @DisplayName("execute: empty operand → cancels the other criteria and returns empty population")
+        void execute_EmptyOperand() {
+            var query = query(CriterionGroup.of(group(EMPTY_POP), CriterionGroup.of(whenQueryNever())));
+
+            var result = service.execute(ID, query);
+
+            StepVerifier.create(result).expectNext(EMPTY_POP).expectComplete().verify(Duration.ofSeconds(10));
+        }
+
+        @Test
+        @DisplayName("executeCount: empty operand → cancels the other criteria and returns 0")
+        void executeCount_EmptyOperand() {
+            var query = query(CriterionGroup.of(group(EMPTY_POP), CriterionGroup.of(whenQueryNever())));
+
+            var result = service.executeCount(ID, query);
+
+            StepVerifier.create(result).expectNext(0).expectComplete().verify(Duration.ofSeconds(10));
+        }
+
+        @Test
+        @DisplayName("execute: disjoint operands → cancels the other criteria and returns empty population")
+        void execute_DisjointOperands() {
+            var query = query(new CriterionGroup<>(group(PATIENT_1_POP),
+                    List.of(group(PATIENT_2_POP), CriterionGroup.of(whenQueryNever()))));
+
+            var result = service.execute(ID, query);
+
+            StepVerifier.create(result).expectNext(EMPTY_POP).expectComplete().verify(Duration.ofSeconds(10));
+        }
+
+        @Test
+        @DisplayName("executeCount: disjoint operands → cancels the other criteria and returns 0")
+        void executeCount_DisjointOperands() {
+            var query = query(new CriterionGroup<>(group(PATIENT_1_POP),
+                    List.of(group(PATIENT_2_POP), CriterionGroup.of(whenQueryNever()))));
+
+            var result = service.executeCount(ID, query);
+
+            StepVerifier.create(result).expectNext(0).expectComplete().verify(Duration.ofSeconds(10));
+        }
+
         @Test
         @DisplayName("translate: returns CODE_1 ∩ CODE_2")
         void translate() {
@@ -190,6 +264,16 @@ class StructuredQueryServiceTest {
             StepVerifier.create(result).expectNext(PATIENT_1_POP.union(PATIENT_2_POP)).verifyComplete();
         }
 
+        @Test
+        @DisplayName("executeCount: multiple patients → returns 2")
+        void executeCount_MultiplePatients() {
+            var query = query(inclOr(PATIENT_1_POP, PATIENT_2_POP));
+
+            var result = service.executeCount(ID, query);
+
+            StepVerifier.create(result).expectNext(2).verifyComplete();
+        }
+
         @Test
         @DisplayName("execute: same patient → returns 1")
         void execute_SamePatient() {
@@ -212,6 +296,44 @@ class StructuredQueryServiceTest {
         }
     }
 
+    @Nested
+    class CachedDisjunctionInclusion {
+
+        StructuredQueryService cachedService;
+
+        @BeforeEach
+        void setUp() {
+            var cache = new GroupCache(new GroupCache.Config(128, Duration.ofHours(1)), Clock.systemUTC());
+            cache.init();
+            cachedService = new StructuredQueryService(fhirQueryService, translator, cache);
+        }
+
+        @Test
+        @DisplayName("execute twice: the queries are executed only once")
+        void execute_Twice() {
+            var now = Instant.now();
+            var query = query(inclOr(PATIENT_1_POP.withCreated(now), PATIENT_2_POP.withCreated(now)));
+            cachedService.execute(ID, query).block();
+
+            var result = cachedService.execute(ID, query);
+
+            StepVerifier.create(result).expectNext(PATIENT_1_POP.union(PATIENT_2_POP)).verifyComplete();
+            verify(fhirQueryService, times(2)).execute(eq(ID), any(Query.class));
+        }
+
+        @Test
+        @DisplayName("execute twice with expired populations: the queries are executed twice")
+        void execute_Twice_Expired() {
+            var query = query(inclOr(PATIENT_1_POP, PATIENT_2_POP));
+            cachedService.execute(ID, query).block();
+
+            var result = cachedService.execute(ID, query);
+
+            StepVerifier.create(result).expectNext(PATIENT_1_POP.union(PATIENT_2_POP)).verifyComplete();
+            verify(fhirQueryService, times(4)).execute(eq(ID), any(Query.class));
+        }
+    }
+
     @Nested
     class SingleInclusionAndExclusion {
 
@@ -235,6 +357,16 @@ class StructuredQueryServiceTest {
             StepVerifier.create(result).expectNext(EMPTY_POP).verifyComplete();
         }
 
+        @Test
+        @DisplayName("execute: no PATIENT is included → doesn't execute the exclusion")
+        void execute_NoPatientIncluded() {
+            var query = query(incl(EMPTY_POP), CriterionGroup.of(CriterionGroup.of(whenQueryNever())));
+
+            var result = service.execute(ID, query);
+
+            StepVerifier.create(result).expectNext(EMPTY_POP).expectComplete().verify(Duration.ofSeconds(10));
+        }
+
         @Test
         @DisplayName("translate: returns CODE_1 ∖ CODE_2")
         void translate() {
@@ -272,6 +404,26 @@ class StructuredQueryServiceTest {
             StepVerifier.create(result).expectNext(EMPTY_POP).verifyComplete();
         }
 
+        @Test
+        @DisplayName("executeCount: PATIENT is not excluded → returns 1")
+        void executeCount_PatientNotExcluded() {
+            var query = query(incl(PATIENT_POP), exclOr(PATIENT_1_POP, PATIENT_2_POP));
+
+            var result = service.executeCount(ID, query);
+
+            StepVerifier.create(result).expectNext(1).verifyComplete();
+        }
+
+        @Test
+        @DisplayName("executeCount: PATIENT is excluded → returns 0")
+        void executeCount_PatientExcluded() {
+            var query = query(incl(PATIENT_POP), exclOr(PATIENT_POP, PATIENT_1_POP));
+
+            var result = service.executeCount(ID, query);
+
+            StepVerifier.create(result).expectNext(0).verifyComplete();
+        }
+
         @Test
         @DisplayName("translate: returns CODE_1 ∖ (CODE_2 ∪ CODE_3)")
         void translate() {
@@ -309,6 +461,26 @@ class StructuredQueryServiceTest {
             StepVerifier.create(result).expectNext(EMPTY_POP).verifyComplete();
         }
 
+        @Test
+        @DisplayName("executeCount: PATIENT is not excluded → returns 1")
+        void executeCount_PatientNotExcluded() {
+            var query = query(incl(PATIENT_POP), exclAnd(PATIENT_POP, PATIENT_1_POP));
+
+            var result = service.executeCount(ID, query);
+
+            StepVerifier.create(result).expectNext(1).verifyComplete();
+        }
+
+        @Test
+        @DisplayName("executeCount: PATIENT is excluded → returns 0")
+        void executeCount_PatientExcluded() {
+            var query = query(incl(PATIENT_POP), exclAnd(PATIENT_POP, PATIENT_POP));
+
+            var result = service.executeCount(ID, query);
+
+            StepVerifier.create(result).expectNext(0).verifyComplete();
+        }
+
         @Test
         @DisplayName("translate: returns CODE_1 ∖ (CODE_2 ∩ CODE_3)")
         void translate() {
@@ -353,6 +525,19 @@ class StructuredQueryServiceTest {
         return criterionQuery.criterion;
     }
 
+    /**
+     * Returns a criterion whose query never completes. The stubbing is lenient, because the criterion isn't executed
+     * if it's cancelled early enough.
+     */
+    Criterion whenQueryNever() {
+        var code = TermCode.of(BFARM, UUID.randomUUID().toString(), "");
+        var criterion = Criterion.of(ContextualConcept.of(CONTEXT, Concept.of(code)));
+        var query = Query.of("Condition", QueryParams.of("code", conceptValue(code)));
+        lenient().when(translator.toQuery(criterion)).thenReturn(Either.right(List.of(query)));
+        lenient().when(fhirQueryService.execute(ID, query)).thenReturn(Mono.never());
+        return criterion;
+    }
+
     Criterion whenQueryExpand(Population p1, Population p2) {
         var criterionQuery = whenCriterionExpand(TermCode.of(BFARM, UUID.randomUUID().toString(), ""),
                 TermCode.of(BFARM, UUID.randomUUID().toString(), ""));